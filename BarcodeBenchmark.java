@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.zxing.*;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import karthik.Barcode.*;
+
+/**
+ *
+ * @author karthik
+ * Runs the localizer and ZXing over the image dataset (image_dataset.ZIP unpacked) and reports recall
+ * against the ground truth decodes, throughput, latency percentiles and candidates per image.
+ * With -compare it runs a second configuration over the same images and lists images that the second
+ * configuration lost, so that a speed change can be checked for any cost in recall.
+ */
+public class BarcodeBenchmark {
+
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp", ".gif"};
+
+    static {
+        NativeLoader.load();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            show_usage_syntax();
+            return;
+        }
+
+        File dataset = null;
+        List<String> folders = new ArrayList<>();
+        Config baseline = new Config("");
+        Config compare = null;
+        int warmup = 5, limit = Integer.MAX_VALUE;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equalsIgnoreCase("-folder"))
+                folders.add(args[++i]);
+            else if (arg.equalsIgnoreCase("-config"))
+                baseline = new Config(args[++i]);
+            else if (arg.equalsIgnoreCase("-compare"))
+                compare = new Config(args[++i]);
+            else if (arg.equalsIgnoreCase("-warmup"))
+                warmup = Integer.parseInt(args[++i]);
+            else if (arg.equalsIgnoreCase("-limit"))
+                limit = Integer.parseInt(args[++i]);
+            else
+                dataset = new File(arg);
+        }
+        if (dataset == null || !dataset.isDirectory()) {
+            System.out.println("Dataset directory not found - unpack image_dataset.ZIP and pass the directory");
+            return;
+        }
+        if (folders.isEmpty())
+            folders.add("Matrix");
+
+        for (String folder : folders) {
+            File dir = new File(dataset, folder);
+            List<File> images = listImages(dir, limit);
+            Map<File, String> truth = loadGroundTruth(dataset, dir, images);
+            System.out.println(folder + " - " + images.size() + " images, " + truth.size() + " with ground truth decodes");
+
+            RunResult base = run(baseline, images, truth, warmup);
+            base.print(folder + " [" + baseline + "]");
+            if (compare != null) {
+                RunResult other = run(compare, images, truth, warmup);
+                other.print(folder + " [" + compare + "]");
+                printComparison(base, other);
+            }
+        }
+        baseline.close();
+        if (compare != null)
+            compare.close();
+    }
+
+    private static RunResult run(Config config, List<File> images, Map<File, String> truth, int warmup) {
+        // warms up on the first images untimed then times each image from load to the end of decoding
+        for (int i = 0; i < Math.min(warmup, images.size()); i++)
+            processImage(config, images.get(i));
+        // warm up results are dropped so the cache only hits on images that really are repeated in the run
+        config.reset();
+
+        RunResult result = new RunResult(images.size());
+        long start = System.nanoTime();
+        for (File image : images) {
+            long t0 = System.nanoTime();
+            ImageResult r = processImage(config, image);
+            long t1 = System.nanoTime();
+            result.add(image, r, t1 - t0, truth.get(image));
+        }
+        result.wall_nanos = System.nanoTime() - start;
+        result.extra = config.getStatistics();
+        return result;
+    }
+
+    private static ImageResult processImage(Config config, File image) {
+        ImageResult result = new ImageResult();
+        try {
+            long t0 = System.nanoTime();
+            List<CandidateResult> candidates;
+            if (config.cache != null)
+                candidates = config.cache.locateBarcode(image.getPath(), TryHarderFlags.VERY_SMALL_MATRIX, config.loadFlag);
+            else {
+                MatrixBarcode barcode = new MatrixBarcode(image.getPath(), false, TryHarderFlags.VERY_SMALL_MATRIX, config.loadFlag);
+                barcode.doIntegerGradients(config.integer);
+                barcode.doJavaBackend(config.java);
+                barcode.doConnectedComponents(config.components);
+                barcode.doVerifyCandidates(config.verify);
+                barcode.doLocateOnly(config.locateOnly);
+                barcode.setCropExecutor(config.cropExecutor);
+                if (config.deadline_millis > 0)
+                    barcode.setDeadline(System.nanoTime() + config.deadline_millis * 1000000L);
+
+                if (config.ladder != null) {
+                    // the ladder locates and decodes in one go so localization time includes decoding here
+                    List<EscalationLadder.Decoded> decoded = config.ladder.decode(barcode);
+                    result.localize_nanos = System.nanoTime() - t0;
+                    result.candidates = decoded.size();
+                    result.partial = barcode.isPartial();
+                    for (EscalationLadder.Decoded d : decoded)
+                        result.decoded.add(d.text);
+                    return result;
+                }
+                candidates = barcode.locateBarcode();
+                result.partial = barcode.isPartial();
+            }
+            result.localize_nanos = System.nanoTime() - t0;
+            result.candidates = candidates.size();
+
+            for (CandidateResult cr : candidates) {
+                String text = decode(cr.getCandidate(), true);
+                if (text != null)
+                    result.decoded.add(text);
+            }
+        } catch (IOException | RuntimeException e) {
+            result.error = true;
+        }
+        return result;
+    }
+
+    private static String decode(BufferedImage candidate, boolean tryHarder) {
+        // same ZXing settings as SimpleBarcodeTester
+        if (candidate == null)
+            return null;
+        LuminanceSource source = new BufferedImageLuminanceSource(candidate);
+        BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        if (tryHarder)
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        try {
+            return new MultiFormatReader().decode(bitmap, hints).getText();
+        } catch (ReaderException re) {
+            return null;
+        }
+    }
+
+    private static List<File> listImages(File dir, int limit) {
+        List<File> images = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return images;
+        Arrays.sort(files);
+        for (File f : files)
+            if (f.isFile() && isImage(f.getName()) && images.size() < limit)
+                images.add(f);
+        return images;
+    }
+
+    private static Map<File, String> loadGroundTruth(File dataset, File dir, List<File> images) throws IOException {
+        // reads every .txt file in the dataset and folder directories. Each line is expected to start with the
+        // name of an image in the success folder followed by a tab, comma or spaces and the decoded text.
+        // Success images are named after their source image so a line belongs to the image with the
+        // longest base name that the success image name starts with
+        Map<File, String> truth = new HashMap<>();
+        List<File> textFiles = new ArrayList<>();
+        for (File d : new File[]{dataset, dir}) {
+            File[] files = d.listFiles();
+            if (files != null)
+                for (File f : files)
+                    if (f.isFile() && f.getName().toLowerCase().endsWith(".txt"))
+                        textFiles.add(f);
+        }
+
+        for (File textFile : textFiles) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    int sep = indexOfSeparator(line);
+                    if (sep <= 0)
+                        continue;
+                    String key = baseName(new File(line.substring(0, sep)).getName());
+                    String text = line.substring(sep + 1).trim();
+                    File image = matchImage(key, images);
+                    if (image != null && text.length() > 0)
+                        truth.put(image, text);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return truth;
+    }
+
+    private static int indexOfSeparator(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t' || c == ',' || c == ' ')
+                return i;
+        }
+        return -1;
+    }
+
+    private static File matchImage(String key, List<File> images) {
+        File best = null;
+        int best_length = 0;
+        for (File image : images) {
+            String base = baseName(image.getName());
+            boolean matches = key.equals(base)
+                || (key.startsWith(base) && !Character.isLetterOrDigit(key.charAt(base.length())));
+            if (matches && base.length() > best_length) {
+                best = image;
+                best_length = base.length();
+            }
+        }
+        return best;
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 && isImage(name)) ? name.substring(0, dot) : name;
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase();
+        for (String ext : IMAGE_EXTENSIONS)
+            if (lower.endsWith(ext))
+                return true;
+        return false;
+    }
+
+    private static void printComparison(RunResult base, RunResult other) {
+        List<String> lost = new ArrayList<>(), gained = new ArrayList<>();
+        for (File image : base.correct.keySet()) {
+            boolean a = base.correct.get(image);
+            boolean b = other.correct.containsKey(image) && other.correct.get(image);
+            if (a && !b)
+                lost.add(image.getName());
+            if (b && !a)
+                gained.add(image.getName());
+        }
+        System.out.println("Recall change " + percent(other.recall() - base.recall()) + " points, speed "
+            + String.format("%.2f", other.imagesPerSecond() / base.imagesPerSecond()) + "x");
+        System.out.println("Lost " + lost.size() + ": " + lost);
+        System.out.println("Gained " + gained.size() + ": " + gained);
+        System.out.println();
+    }
+
+    private static String percent(double fraction) {
+        return String.format("%.1f", fraction * 100);
+    }
+
+    private static void show_usage_syntax() {
+        System.out.println("Usage: BarcodeBenchmark <dataset directory> [-folder Matrix|Linear] [-config <flags>] [-compare <flags>]");
+        System.out.println("        [-warmup <images>] [-limit <images>]");
+        System.out.println("<flags> is a comma separated list of reduced, gray, integer, java, components, verify, escalate,");
+        System.out.println("        cache, locate, deadline=<ms>, crop=<threads> or default for none");
+        System.out.println("locate times localization alone, crop=<threads> crops candidates in parallel on that many threads");
+        System.out.println("cache goes through a ResultCache and can only be combined with reduced and gray");
+        System.out.println("-folder can be repeated and defaults to Matrix");
+        System.out.println("-compare runs a second configuration over the same images and lists images it lost or gained");
+    }
+
+    private static class Config {
+
+        ImageLoadFlags loadFlag = ImageLoadFlags.FULL_RESOLUTION;
+        boolean integer, java, components, verify, locateOnly;
+        long deadline_millis;
+        EscalationLadder ladder;
+        ResultCache cache;
+        ExecutorService cropExecutor;
+        private final String description;
+
+        Config(String flags) {
+            boolean reduced = false, gray = false;
+            for (String flag : flags.split(",")) {
+                flag = flag.trim();
+                String lower = flag.toLowerCase();
+                if (lower.startsWith("deadline="))
+                    deadline_millis = Long.parseLong(flag.substring("deadline=".length()));
+                else if (lower.startsWith("crop="))
+                    cropExecutor = newCropExecutor(Integer.parseInt(flag.substring("crop=".length())));
+                else if (flag.equalsIgnoreCase("verify"))
+                    verify = true;
+                else if (flag.equalsIgnoreCase("escalate"))
+                    ladder = new EscalationLadder(new EscalationLadder.Decoder() {
+                        public String decode(BufferedImage image, boolean tryHarder) {
+                            return BarcodeBenchmark.decode(image, tryHarder);
+                        }
+                    });
+                else if (flag.equalsIgnoreCase("cache"))
+                    cache = newCache();
+                else if (flag.equalsIgnoreCase("locate"))
+                    locateOnly = true;
+                else if (flag.equalsIgnoreCase("reduced"))
+                    reduced = true;
+                else if (flag.equalsIgnoreCase("gray"))
+                    gray = true;
+                else if (flag.equalsIgnoreCase("integer"))
+                    integer = true;
+                else if (flag.equalsIgnoreCase("java"))
+                    java = true;
+                else if (flag.equalsIgnoreCase("components"))
+                    components = true;
+                else if (flag.length() > 0 && !flag.equalsIgnoreCase("default"))
+                    throw new IllegalArgumentException("Unknown benchmark flag " + flag);
+            }
+            if (reduced)
+                loadFlag = gray ? ImageLoadFlags.REDUCED_GRAYSCALE : ImageLoadFlags.REDUCED_RESOLUTION;
+            else if (gray)
+                loadFlag = ImageLoadFlags.GRAYSCALE;
+            // the cache makes its own Barcode objects so none of the per barcode settings would apply
+            if (cache != null && (integer || java || components || verify || locateOnly || ladder != null
+                || deadline_millis > 0 || cropExecutor != null))
+                throw new IllegalArgumentException("cache can only be combined with reduced and gray");
+            if (ladder != null && locateOnly)
+                throw new IllegalArgumentException("escalate decodes candidates so it cannot be combined with locate");
+            description = (flags.trim().length() == 0) ? "default" : flags.trim();
+        }
+
+        private static ExecutorService newCropExecutor(int threads) {
+            // daemon threads so a benchmark that fails part way through still exits
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "benchmark-crop");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        private static ResultCache newCache() {
+            return new ResultCache(256, 64L * 1024 * 1024);
+        }
+
+        void reset() {
+            // a new cache rather than clear() so the hit counts only cover the timed images
+            if (cache != null)
+                cache = newCache();
+        }
+
+        String getStatistics() {
+            // statistics of the cache or the escalation ladder, null if neither is used
+            if (cache != null)
+                return "cache " + cache.getStatistics();
+            if (ladder != null)
+                return "escalation " + ladder.getStatistics();
+            return null;
+        }
+
+        void close() {
+            if (cropExecutor != null)
+                cropExecutor.shutdown();
+        }
+
+        public String toString() {
+            return description;
+        }
+    }
+
+    private static class ImageResult {
+
+        long localize_nanos;
+        int candidates;
+        boolean error, partial;
+        Set<String> decoded = new HashSet<>();
+    }
+
+    private static class RunResult {
+
+        final long[] latencies, localize_latencies;
+        int count, with_truth, recalled, any_decode, errors, partial;
+        long total_candidates, wall_nanos;
+        String extra;  // statistics of the configuration, if it has any
+        final Map<File, Boolean> correct = new HashMap<>();  // for images with ground truth
+
+        RunResult(int size) {
+            latencies = new long[size];
+            localize_latencies = new long[size];
+        }
+
+        void add(File image, ImageResult r, long nanos, String expected) {
+            latencies[count] = nanos;
+            localize_latencies[count] = r.localize_nanos;
+            count++;
+            total_candidates += r.candidates;
+            if (r.error)
+                errors++;
+            if (r.partial)
+                partial++;
+            if (!r.decoded.isEmpty())
+                any_decode++;
+            if (expected != null) {
+                with_truth++;
+                boolean ok = r.decoded.contains(expected);
+                if (ok)
+                    recalled++;
+                correct.put(image, ok);
+            }
+        }
+
+        double recall() {
+            return (with_truth == 0) ? 0 : recalled / (1.0 * with_truth);
+        }
+
+        double imagesPerSecond() {
+            return (wall_nanos == 0) ? 0 : count / (wall_nanos / 1e9);
+        }
+
+        void print(String title) {
+            System.out.println(title);
+            System.out.println("  recall " + recalled + "/" + with_truth + " = " + percent(recall()) + "%, images with any decode "
+                + any_decode + "/" + count + ", errors " + errors + ", cut short by the deadline " + partial);
+            System.out.println("  " + String.format("%.2f", imagesPerSecond()) + " images/s, candidates per image "
+                + String.format("%.2f", total_candidates / (1.0 * Math.max(count, 1))));
+            System.out.println("  latency ms p50 " + millis(percentile(latencies, 50)) + " p99 " + millis(percentile(latencies, 99))
+                + " - localization only p50 " + millis(percentile(localize_latencies, 50))
+                + " p99 " + millis(percentile(localize_latencies, 99)));
+            if (extra != null)
+                System.out.println("  " + extra);
+            System.out.println();
+        }
+
+        private long percentile(long[] values, int p) {
+            if (count == 0)
+                return 0;
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil(p / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(idx, count - 1))];
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.1f", nanos / 1e6);
+        }
+    }
+}
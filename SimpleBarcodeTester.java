@@ -27,7 +27,10 @@ import karthik.Barcode.*;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
 import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.highgui.VideoCapture;
 
 /**
@@ -43,6 +46,16 @@ public class SimpleBarcodeTester {
     private static boolean IS_CAMERA = false;
     private static boolean SHOW_INTERMEDIATE_STEPS = false;
     private static boolean showImages = true;
+    private static ImageLoadFlags loadFlag = ImageLoadFlags.FULL_RESOLUTION;
+    private static boolean INTEGER_GRADIENTS = false;
+    private static boolean JAVA_BACKEND = false;
+    private static boolean CONNECTED_COMPONENTS = false;
+    private static boolean VERIFY_CANDIDATES = false;
+    private static boolean ESCALATE = false;
+    private static boolean COMPARE_GRADIENTS = false;
+    private static boolean CHECK_REGIONS = false;
+    private static final int COMPARE_RUNS = 3;  // each gradient stage is timed this many times and the best run kept
+    private static boolean LIVE_CAMERA = false;
     
     private static String imgFile;
     private static VideoCapture video;
@@ -51,7 +64,7 @@ public class SimpleBarcodeTester {
     private static int CV_FRAME_COUNT = 7;
 
     static {
-        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        NativeLoader.load();
         System.loadLibrary("opencv_ffmpeg249_64");
     }
 
@@ -60,6 +73,10 @@ public class SimpleBarcodeTester {
         Map<CharSequence, BarcodeLocation> results = new HashMap<>();
         show_usage_syntax();
         parse_args(args);
+        if (CHECK_REGIONS) {
+            checkExcludedRegions();
+            return;
+        }
         if (IS_VIDEO && IS_CAMERA)
             IS_VIDEO = false;
 
@@ -78,7 +95,7 @@ public class SimpleBarcodeTester {
             video.open(0);
             if (video.isOpened())
                 System.out.println("Camera is open");
-            results = processCamera("Camera feed");
+            results = LIVE_CAMERA ? processLiveCamera("Camera feed") : processCamera("Camera feed");
             if (results.size() == 0)
                 System.out.println("No results found");
             
@@ -220,14 +237,60 @@ public class SimpleBarcodeTester {
         return foundCodes;
     }
 
+    private static Map<CharSequence, BarcodeLocation> processLiveCamera(final String caption) {
+        // same as processCamera but capture and localization run on separate threads and frames
+        // that arrive while the localizer is busy are dropped so that results stay close to real time
+        final Map<CharSequence, BarcodeLocation> foundCodes = new HashMap<>();
+        Mat image = new Mat();
+        video.read(image);
+        final ImageDisplay videoDisp = showImages ? ImageDisplay.getImageFrame(image, "Video Frames") : null;
+
+        LiveFramePipeline pipeline = new LiveFramePipeline(new LiveFramePipeline.FrameSource() {
+            public boolean read(Mat frame) {
+                return video.read(frame);
+            }
+        }, TryHarderFlags.VERY_SMALL_MATRIX, new LiveFramePipeline.ResultListener() {
+            public void onResult(Mat frame, long frameNumber, List<CandidateResult> candidates, long latencyNanos) {
+                try {
+                    Map<CharSequence, BarcodeLocation> frame_results = decodeBarcodeFromVideo(candidates, (int) frameNumber);
+                    foundCodes.putAll(frame_results);
+                    for (BarcodeLocation bl : frame_results.values()) {
+                        Point[] rectPoints = bl.coords;
+                        Scalar colour = new Scalar(255, 0, 0);
+                        for (int j = 0; j < 3; j++)
+                            Core.line(frame, rectPoints[j], rectPoints[j + 1], colour, 2, Core.LINE_AA, 0);
+                        Core.line(frame, rectPoints[3], rectPoints[0], colour, 2, Core.LINE_AA, 0);
+                    }
+                    if (videoDisp != null)
+                        videoDisp.updateImage(frame, caption + " frame " + frameNumber);
+                } catch (IOException ioe) {
+                    System.out.println("IO Exception when decoding barcode " + ioe.getMessage());
+                }
+            }
+        });
+
+        pipeline.start();
+        long end_time = System.currentTimeMillis() + 240000;
+        try {
+            while (pipeline.isRunning() && System.currentTimeMillis() < end_time) {
+                Thread.sleep(1000);
+                System.out.print(pipeline.getStatistics() + "\r");
+            }
+            pipeline.stop();
+        } catch (InterruptedException ie) {
+        }
+        System.out.println(pipeline.getStatistics());
+        return foundCodes;
+    }
+
     private static Map<CharSequence, BarcodeLocation> decodeBarcodeFromVideo(List<CandidateResult> candidateCodes,
-        int frameNumber) {
+        int frameNumber) throws IOException {
         // decodes barcode using ZXing and either print the barcode text or says no barcode found
         Result result = null;
         Map<CharSequence, BarcodeLocation> results = new HashMap<>();
 
         for (CandidateResult cr : candidateCodes) {
-            BufferedImage candidate = cr.candidate;
+            BufferedImage candidate = cr.getCandidate();
             LuminanceSource source = new BufferedImageLuminanceSource(candidate);
             BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
             Reader reader = new MultiFormatReader();
@@ -246,15 +309,30 @@ public class SimpleBarcodeTester {
     }
 
     private static void process_image() {
-        Barcode barcode;
+        MatrixBarcode barcode;
         // instantiate a class of type MatrixBarcode with the image filename
         try {
-            barcode = new MatrixBarcode(imgFile, SHOW_INTERMEDIATE_STEPS, TryHarderFlags.VERY_SMALL_MATRIX);
+            if (COMPARE_GRADIENTS) {
+                compareGradients();
+                return;
+            }
+            barcode = new MatrixBarcode(imgFile, SHOW_INTERMEDIATE_STEPS, TryHarderFlags.VERY_SMALL_MATRIX, loadFlag);
+            barcode.doIntegerGradients(INTEGER_GRADIENTS);
+            barcode.doJavaBackend(JAVA_BACKEND);
+            barcode.doConnectedComponents(CONNECTED_COMPONENTS);
+            barcode.doVerifyCandidates(VERIFY_CANDIDATES);
+
+            if (ESCALATE) {
+                decodeWithLadder(barcode);
+                return;
+            }
 
             // locateBarcode() returns a List<CandidateResult> with all possible candidate barcode regions from
             // within the image. These images then get passed to a decoder(we use ZXing here but could be any decoder)
             List<CandidateResult> results = barcode.locateBarcode();
             System.out.println("Decoding " + imgFile + " " + results.size() + " candidate codes found");
+            if (VERIFY_CANDIDATES)
+                System.out.println(barcode.getRejectedCount() + " of " + barcode.getVerifiedCount() + " candidates rejected by the verifier");
 
             String imgFile = barcode.getName();
 
@@ -264,14 +342,130 @@ public class SimpleBarcodeTester {
         }
     }
 
-    private static void decodeBarcode(List<CandidateResult> candidateCodes, String filename, String caption) {
+    private static void checkExcludedRegions() {
+        // searches synthetic images with their matrix code excluded - no candidate may still be centred on the code
+        boolean passed = true;
+        for (Size size : LocalizerWarmUp.DEFAULT_SIZES) {
+            int rows = (int) size.height, cols = (int) size.width;
+            Rect code_box = LocalizerWarmUp.matrixCodeBox(rows, cols);
+            try {
+                Mat image = LocalizerWarmUp.syntheticImage(rows, cols, 42);
+                MatrixBarcode barcode = new MatrixBarcode("exclusion check", image, TryHarderFlags.VERY_SMALL_MATRIX);
+                barcode.doLocateOnly(true);
+                int found = barcode.locateBarcode().size();
+                // a new Barcode since locateBarcode returns every candidate found so far for an image
+                barcode = new MatrixBarcode("exclusion check", image, TryHarderFlags.VERY_SMALL_MATRIX);
+                barcode.doLocateOnly(true);
+                barcode.setSearchRegions(null, Arrays.asList(code_box));
+                int inside = 0;
+                for (CandidateResult cr : barcode.locateBarcode())
+                    if (code_box.contains(cr.getRegion().center))
+                        inside++;
+                System.out.println("Excluded region check " + rows + "x" + cols + " - " + found + " candidates without exclusion, "
+                    + inside + " centred in the excluded region " + ((inside == 0) ? "- passed" : "- FAILED"));
+                passed = passed && (inside == 0);
+            } catch (IOException ioe) {
+                System.out.println("IO Exception in excluded region check " + ioe.getMessage());
+                passed = false;
+            }
+        }
+        System.out.println(passed ? "Excluded region check passed" : "Excluded region check failed");
+    }
+
+    private static void compareGradients() throws IOException {
+        // runs the float and the integer gradient stages on the same image and compares their localization time,
+        // the candidate regions they find and the text decoded from those candidates
+        GradientRun float_run = new GradientRun(), integer_run = new GradientRun();
+        for (int i = 0; i < COMPARE_RUNS; i++) {
+            // alternate the two so that neither gets all of the warm caches
+            float_run.locate(false);
+            integer_run.locate(true);
+        }
+        Set<CharSequence> float_text = decodeBarcodeFromVideo(float_run.candidates, 0).keySet();
+        Set<CharSequence> integer_text = decodeBarcodeFromVideo(integer_run.candidates, 0).keySet();
+
+        int matched = 0;
+        for (CandidateResult cr : float_run.candidates)
+            if (hasMatchingRegion(cr, integer_run.candidates))
+                matched++;
+
+        System.out.println("Gradient comparison for " + imgFile + ", best of " + COMPARE_RUNS + " runs");
+        System.out.println("  float   " + Math.round(float_run.best_nanos / 1e5) / 10.0 + " ms, "
+            + float_run.candidates.size() + " candidates, decoded " + float_text);
+        System.out.println("  integer " + Math.round(integer_run.best_nanos / 1e5) / 10.0 + " ms, "
+            + integer_run.candidates.size() + " candidates, decoded " + integer_text);
+        System.out.println("  " + matched + " of " + float_run.candidates.size()
+            + " float candidates have an integer candidate in the same place, decodes "
+            + (float_text.equals(integer_text) ? "agree" : "differ"));
+    }
+
+    private static boolean hasMatchingRegion(CandidateResult cr, List<CandidateResult> others) {
+        // same place means the centres are closer than half the shorter side of cr's region
+        RotatedRect region = cr.getRegion();
+        double limit = Math.min(region.size.width, region.size.height) / 2;
+        for (CandidateResult other : others) {
+            Point centre = other.getRegion().center;
+            if (Math.hypot(centre.x - region.center.x, centre.y - region.center.y) < limit)
+                return true;
+        }
+        return false;
+    }
+
+    private static class GradientRun {
+
+        List<CandidateResult> candidates;
+        long best_nanos = Long.MAX_VALUE;
+
+        void locate(boolean integer) throws IOException {
+            // times loading and localization together since both settings load the image the same way
+            long start = System.nanoTime();
+            MatrixBarcode barcode = new MatrixBarcode(imgFile, false, TryHarderFlags.VERY_SMALL_MATRIX, loadFlag);
+            barcode.doIntegerGradients(integer);
+            barcode.doJavaBackend(JAVA_BACKEND);
+            barcode.doConnectedComponents(CONNECTED_COMPONENTS);
+            List<CandidateResult> found = barcode.locateBarcode();
+            best_nanos = Math.min(best_nanos, System.nanoTime() - start);
+            // crops are lazy so they are only made when the first run's candidates are decoded, outside the timing
+            if (candidates == null)
+                candidates = found;
+        }
+    }
+
+    private static void decodeWithLadder(Barcode barcode) throws IOException {
+        // tries each candidate with the cheapest decode first and only escalates the ones that fail
+        EscalationLadder ladder = new EscalationLadder(new EscalationLadder.Decoder() {
+            public String decode(BufferedImage image, boolean tryHarder) {
+                LuminanceSource source = new BufferedImageLuminanceSource(image);
+                BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+                Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+                if (tryHarder)
+                    hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+                try {
+                    return new MultiFormatReader().decode(bitmap, hints).getText();
+                } catch (ReaderException re) {
+                    return null;
+                }
+            }
+        });
+        List<EscalationLadder.Decoded> decoded = ladder.decode(barcode);
+        for (EscalationLadder.Decoded d : decoded) {
+            System.out.println("Barcode text for " + barcode.getName() + " is " + d.text + " (" + d.level + ")");
+            if (showImages)
+                ImageDisplay.showImageFrame(d.candidate.getCandidate(), barcode.getName() + " - barcode text " + d.text);
+        }
+        if (decoded.isEmpty())
+            System.out.println(barcode.getName() + " - no barcode found");
+        System.out.println("Escalation " + ladder.getStatistics());
+    }
+
+    private static void decodeBarcode(List<CandidateResult> candidateCodes, String filename, String caption) throws IOException {
         // decodes barcode using ZXing and either print the barcode text or says no barcode found
         BufferedImage decodedBarcode = null;
         String title = null;
         Result result = null;
         
         for (CandidateResult cr : candidateCodes) {
-            BufferedImage candidate = cr.candidate;
+            BufferedImage candidate = cr.getCandidate();
             decodedBarcode = null;
             LuminanceSource source = new BufferedImageLuminanceSource(candidate);
             BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
@@ -305,10 +499,21 @@ public class SimpleBarcodeTester {
         System.out.println("");
         System.out.println("Usage: BarcodeTester <imagefile> [-matrix] [-oracle] ");
         System.out.println("<imagefile> must be JPEG or PNG");
-        System.out.println("[-debug] - shows images for intermediate steps and saves intermediate files");
+        System.out.println("[-debug] - writes images for intermediate steps to the current directory");
         System.out.println("[-video] - <imagefile> is a video");
         System.out.println("[-camera] - capture from camera");
         System.out.println("[-noimages] - do not display any images, overrides -debug command");
+        System.out.println("[-reduced] - decode large images at reduced resolution");
+        System.out.println("[-gray] - process images as grayscale only");
+        System.out.println("[-integer] - use the integer gradient stage instead of the float one");
+        System.out.println("[-checkregions] - check that an excluded search region removes a synthetic code inside it");
+        System.out.println("[-comparegradients] - run the float and integer gradient stages on the image and compare");
+        System.out.println("                      their timing, candidate regions and decoded text");
+        System.out.println("[-java] - use the pure Java implementation of the gradient, histogram and tiling stages");
+        System.out.println("[-components] - find candidate regions with connected components instead of contours");
+        System.out.println("[-verify] - drop candidate regions that do not look like a barcode before cropping them");
+        System.out.println("[-escalate] - decode the plain crop first and only upscale or try harder when that fails");
+        System.out.println("[-live] - with -camera, localize only the newest frame and drop frames that arrive while busy");
         System.out.println("");
     }
 
@@ -334,6 +539,56 @@ public class SimpleBarcodeTester {
                 continue;
             }
 
+            if (arg.equalsIgnoreCase("-reduced")) {
+                loadFlag = (loadFlag == ImageLoadFlags.GRAYSCALE) ? ImageLoadFlags.REDUCED_GRAYSCALE : ImageLoadFlags.REDUCED_RESOLUTION;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-gray")) {
+                loadFlag = (loadFlag == ImageLoadFlags.REDUCED_RESOLUTION) ? ImageLoadFlags.REDUCED_GRAYSCALE : ImageLoadFlags.GRAYSCALE;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-integer")) {
+                INTEGER_GRADIENTS = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-java")) {
+                JAVA_BACKEND = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-components")) {
+                CONNECTED_COMPONENTS = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-verify")) {
+                VERIFY_CANDIDATES = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-escalate")) {
+                ESCALATE = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-checkregions")) {
+                CHECK_REGIONS = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-comparegradients")) {
+                COMPARE_GRADIENTS = true;
+                continue;
+            }
+
+            if (arg.equalsIgnoreCase("-live")) {
+                LIVE_CAMERA = true;
+                continue;
+            }
+
             if (arg.equalsIgnoreCase("-noimages")) {
                 showImages = false;
                 SHOW_INTERMEDIATE_STEPS = false;
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author karthik
+ * Learns which search profiles and tile scales find codes that decode for each image source
+ * e.g. a camera or a document feed, and searches later images from that source with only those.
+ * The caller reports every candidate that decoded with recordDecoded.
+ * Until a source has seen warmupImages images, and on a random explorationRate share of images after that,
+ * every profile and scale is searched so that the learned configuration can change with the source.
+ * Counts decay with each image from the source so configurations that stop producing codes are dropped.
+ */
+public class AdaptiveSearchProfile {
+
+    private static final int MAX_SCALES = 8;
+    private static final double DECAY = 0.98;        // applied to the decode counts of a source for each image
+    private static final double MIN_HIT_SHARE = 0.05;  // profiles and scales with a smaller share of the decodes are pruned
+
+    private final TryHarderFlags[] profiles;
+    private final double explorationRate;
+    private final int warmupImages;
+    private final Random random = new Random();
+    private final ConcurrentHashMap<String, SourceStats> sources = new ConcurrentHashMap<String, SourceStats>();
+
+    private final AtomicLong fullSearches = new AtomicLong();
+    private final AtomicLong prunedSearches = new AtomicLong();
+
+    public AdaptiveSearchProfile() {
+        // the very small matrix profile is the one MatrixBarcode searches with by default
+        this(Arrays.asList(TryHarderFlags.VERY_SMALL_MATRIX), 0.1, 20);
+    }
+
+    public AdaptiveSearchProfile(List<TryHarderFlags> profiles, double explorationRate, int warmupImages) {
+        this.profiles = profiles.toArray(new TryHarderFlags[profiles.size()]);
+        this.explorationRate = explorationRate;
+        this.warmupImages = warmupImages;
+    }
+
+    public List<CandidateResult> locateBarcode(String sourceId, Barcode barcode) throws IOException {
+        // searches the image in barcode with the profiles and scales learned for sourceId
+        // and returns the candidates from all of them
+        int[] plan = getPlan(sourceId);
+        List<CandidateResult> candidates = new ArrayList<CandidateResult>();
+        for (int p = 0; p < profiles.length; p++) {
+            if (plan[p] == 0)
+                continue;
+            if (barcode.sizeProfile != profiles[p])
+                barcode.setBarcodeSize(profiles[p]);
+            barcode.setSearchScales(plan[p]);
+            // locateBarcode returns the list of all candidates found so far for this image
+            candidates = barcode.locateBarcode();
+        }
+        barcode.setSearchScales(Barcode.ALL_SCALES);
+        return new ArrayList<CandidateResult>(candidates);
+    }
+
+    public void recordDecoded(String sourceId, CandidateResult candidate) {
+        // call for each candidate that a decoder could read
+        int p = indexOf(candidate.getProfile());
+        if (p < 0 || candidate.getScale() >= MAX_SCALES)
+            return;
+        SourceStats stats = getStats(sourceId);
+        synchronized (stats) {
+            stats.hits[p][candidate.getScale()] += 1;
+        }
+    }
+
+    int[] getPlan(String sourceId) {
+        // returns the scale mask to search for each profile, 0 if the profile is skipped
+        SourceStats stats = getStats(sourceId);
+        int[] plan = new int[profiles.length];
+        synchronized (stats) {
+            stats.images++;
+            double total = 0;
+            for (double[] profile_hits : stats.hits)
+                for (int s = 0; s < MAX_SCALES; s++) {
+                    profile_hits[s] *= DECAY;
+                    total += profile_hits[s];
+                }
+
+            boolean explore = stats.images <= warmupImages || total == 0 || random.nextDouble() < explorationRate;
+            for (int p = 0; p < profiles.length; p++) {
+                if (explore) {
+                    plan[p] = Barcode.ALL_SCALES;
+                    continue;
+                }
+                for (int s = 0; s < MAX_SCALES; s++)
+                    if (stats.hits[p][s] >= MIN_HIT_SHARE * total)
+                        plan[p] |= 1 << s;
+            }
+            (explore ? fullSearches : prunedSearches).incrementAndGet();
+        }
+        return plan;
+    }
+
+    public String getPlanDescription(String sourceId) {
+        // profiles and scales that a pruned search of sourceId would use
+        SourceStats stats = sources.get(sourceId);
+        if (stats == null)
+            return sourceId + " - no images yet";
+        StringBuilder description = new StringBuilder(sourceId + " -");
+        synchronized (stats) {
+            double total = 0;
+            for (double[] profile_hits : stats.hits)
+                for (double h : profile_hits)
+                    total += h;
+            for (int p = 0; p < profiles.length; p++) {
+                StringBuilder scales = new StringBuilder();
+                for (int s = 0; s < MAX_SCALES; s++)
+                    if (total > 0 && stats.hits[p][s] >= MIN_HIT_SHARE * total)
+                        scales.append(' ').append(s);
+                if (scales.length() > 0)
+                    description.append(' ').append(profiles[p]).append(" scales").append(scales);
+            }
+        }
+        return description.toString();
+    }
+
+    public long getFullSearchCount() {
+        return fullSearches.get();
+    }
+
+    public long getPrunedSearchCount() {
+        return prunedSearches.get();
+    }
+
+    private SourceStats getStats(String sourceId) {
+        SourceStats stats = sources.get(sourceId);
+        if (stats == null) {
+            SourceStats created = new SourceStats(profiles.length);
+            stats = sources.putIfAbsent(sourceId, created);
+            if (stats == null)
+                stats = created;
+        }
+        return stats;
+    }
+
+    private int indexOf(TryHarderFlags profile) {
+        for (int p = 0; p < profiles.length; p++)
+            if (profiles[p] == profile)
+                return p;
+        return -1;
+    }
+
+    private static class SourceStats {
+
+        long images;
+        final double[][] hits;  // decayed count of decoded candidates for each profile and scale
+
+        SourceStats(int num_profiles) {
+            hits = new double[num_profiles][MAX_SCALES];
+        }
+    }
+}
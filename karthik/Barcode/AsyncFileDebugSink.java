@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ *
+ * @author karthik
+ * DebugSink that writes artifacts to files in a directory on a background thread.
+ * write() copies the Mat and puts it on a bounded queue - if the queue is full the artifact is dropped
+ * so the localization thread never waits for the disk.
+ * PNG is used for 8 bit Mats, RAW writes any Mat as int rows, int cols, int type (big endian) followed by its data.
+ */
+public class AsyncFileDebugSink implements DebugSink {
+
+    public enum Format {
+        PNG, RAW
+    }
+
+    private final File directory;
+    private final Format format;
+    private final int sampleEvery;
+    private final BlockingQueue<Artifact> queue;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final AtomicLong images = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public AsyncFileDebugSink(File directory) {
+        this(directory, Format.PNG, 1, 64);
+    }
+
+    public AsyncFileDebugSink(File directory, Format format, int sampleEvery, int queueCapacity) {
+        // sampleEvery = N writes artifacts for one image in N
+        this.directory = directory;
+        this.format = format;
+        this.sampleEvery = Math.max(sampleEvery, 1);
+        queue = new ArrayBlockingQueue<Artifact>(queueCapacity);
+        directory.mkdirs();
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeArtifacts();
+            }
+        }, "barcode-debug-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean beginImage(String imageName) {
+        return images.getAndIncrement() % sampleEvery == 0;
+    }
+
+    public void write(String imageName, String stage, Mat img) {
+        if (!running || img == null || img.empty())
+            return;
+        if (queue.remainingCapacity() == 0) {
+            // checked first so that we don't copy a Mat that will be dropped anyway
+            dropped.incrementAndGet();
+            return;
+        }
+        if (!queue.offer(new Artifact(fileName(imageName, stage), img.clone())))
+            dropped.incrementAndGet();
+    }
+
+    public void close() throws InterruptedException {
+        // writes the artifacts already queued and stops the writer thread
+        running = false;
+        writer.join();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    private void writeArtifacts() {
+        while (running || !queue.isEmpty()) {
+            Artifact artifact;
+            try {
+                artifact = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (artifact == null)
+                continue;
+            try {
+                if (format == Format.PNG && artifact.img.depth() == CvType.CV_8U) {
+                    if (!Imgcodecs.imwrite(new File(directory, artifact.name + ".png").getPath(), artifact.img))
+                        throw new IOException("could not write " + artifact.name);
+                } else
+                    writeRaw(new File(directory, artifact.name + ".raw"), artifact.img);
+                written.incrementAndGet();
+            } catch (IOException ioe) {
+                errors.incrementAndGet();
+            } finally {
+                artifact.img.release();
+            }
+        }
+    }
+
+    private static void writeRaw(File file, Mat img) throws IOException {
+        Mat data = img.isContinuous() ? img : img.clone();
+        int count = (int) (data.total() * data.channels());
+        ByteBuffer buffer = ByteBuffer.allocate((int) (data.total() * data.elemSize()));
+        int depth = data.depth();
+        if (depth == CvType.CV_8U || depth == CvType.CV_8S) {
+            byte[] values = new byte[count];
+            data.get(0, 0, values);
+            buffer.put(values);
+        } else if (depth == CvType.CV_16U || depth == CvType.CV_16S) {
+            short[] values = new short[count];
+            data.get(0, 0, values);
+            buffer.asShortBuffer().put(values);
+        } else if (depth == CvType.CV_32S) {
+            int[] values = new int[count];
+            data.get(0, 0, values);
+            buffer.asIntBuffer().put(values);
+        } else if (depth == CvType.CV_32F) {
+            float[] values = new float[count];
+            data.get(0, 0, values);
+            buffer.asFloatBuffer().put(values);
+        } else {
+            double[] values = new double[count];
+            data.get(0, 0, values);
+            buffer.asDoubleBuffer().put(values);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(data.rows());
+            out.writeInt(data.cols());
+            out.writeInt(data.type());
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String fileName(String imageName, String stage) {
+        // file name from the base name of the image and the stage with anything unusual replaced by _
+        String base = (imageName == null) ? "image" : new File(imageName).getName();
+        return (base + "_" + stage).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static class Artifact {
+
+        final String name;
+        final Mat img;
+
+        Artifact(String name, Mat img) {
+            this.name = name;
+            this.img = img;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Runs locateBarcode on a fixed pool of platform threads and returns CompletableFutures.
+ * Localization spends almost all of its time in native OpenCV calls, which pin a virtual thread to its carrier,
+ * so callers on virtual threads should submit work here and wait on the future instead of calling locateBarcode directly.
+ * At most threads + queueCapacity tasks are accepted at a time. What happens to further tasks
+ * is set by the RejectionPolicy.
+ * A Barcode object is not thread safe so the same object must not be submitted again until its future completes.
+ */
+public class AsyncLocalizer {
+
+    public enum RejectionPolicy {
+        /*
+         REJECT completes the future exceptionally with a RejectedExecutionException when the queue is full.
+         BLOCK makes the submitting thread wait for space in the queue. This is cheap for virtual threads
+         since they unmount while they wait.
+         */
+        REJECT, BLOCK
+    }
+
+    private final ExecutorService pool;
+    private final Semaphore permits;
+    private final RejectionPolicy policy;
+    private final int threads, queueCapacity;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+
+    public AsyncLocalizer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public AsyncLocalizer(int threads) {
+        this(threads, 4 * threads, RejectionPolicy.BLOCK);
+    }
+
+    public AsyncLocalizer(int threads, int queueCapacity, RejectionPolicy policy) {
+        if (threads < 1 || queueCapacity < 0)
+            throw new IllegalArgumentException("AsyncLocalizer needs at least one thread and a queue capacity of 0 or more");
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        permits = new Semaphore(threads + queueCapacity, true);
+        // the queue itself is unbounded because the semaphore already limits how many tasks get in
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new LocalizerThreadFactory());
+    }
+
+    public CompletableFuture<List<CandidateResult>> submit(final Barcode barcode) {
+        // runs barcode.locateBarcode() on the pool and makes the crops there too unless barcode is in locate only mode
+        return submit(new Task() {
+            public List<CandidateResult> run() throws Exception {
+                return crop(barcode.locateBarcode(), barcode);
+            }
+        });
+    }
+
+    public CompletableFuture<List<CandidateResult>> submit(final String filename, final TryHarderFlags flag,
+        final ImageLoadFlags loadFlag) {
+        // loads the image on the pool as well since decoding it is also native code
+        return submit(new Task() {
+            public List<CandidateResult> run() throws Exception {
+                MatrixBarcode barcode = new MatrixBarcode(filename, false, flag, loadFlag);
+                return crop(barcode.locateBarcode(), barcode);
+            }
+        });
+    }
+
+    public CompletableFuture<List<CandidateResult>> submit(final String image_name, final Mat img, final TryHarderFlags flag) {
+        return submit(new Task() {
+            public List<CandidateResult> run() throws Exception {
+                MatrixBarcode barcode = new MatrixBarcode(image_name, img, flag);
+                return crop(barcode.locateBarcode(), barcode);
+            }
+        });
+    }
+
+    private CompletableFuture<List<CandidateResult>> submit(final Task task) {
+        final CompletableFuture<List<CandidateResult>> future = new CompletableFuture<List<CandidateResult>>();
+        submitted.incrementAndGet();
+
+        if (!acquirePermit(future))
+            return future;
+
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!future.isCancelled())
+                            future.complete(task.run());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        completed.incrementAndGet();
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // pool has been shut down
+            permits.release();
+            rejected.incrementAndGet();
+            future.completeExceptionally(ree);
+        }
+        return future;
+    }
+
+    private static List<CandidateResult> crop(List<CandidateResult> candidates, Barcode barcode) throws IOException {
+        // crops are lazy so they are made here on the pool rather than later on the caller's thread,
+        // unless the caller only asked for locations
+        if (!barcode.locateOnly)
+            for (CandidateResult candidate : candidates)
+                candidate.getCandidate();
+        return candidates;
+    }
+
+    private boolean acquirePermit(CompletableFuture<List<CandidateResult>> future) {
+        // returns false and completes future exceptionally if the task cannot be queued
+        if (policy == RejectionPolicy.BLOCK) {
+            try {
+                permits.acquire();
+                return true;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                future.completeExceptionally(ie);
+                return false;
+            }
+        }
+        if (permits.tryAcquire())
+            return true;
+        rejected.incrementAndGet();
+        future.completeExceptionally(new RejectedExecutionException(
+            "AsyncLocalizer queue is full - " + threads + " running and " + queueCapacity + " queued"));
+        return false;
+    }
+
+    public int getPendingTasks() {
+        // number of tasks accepted that have not finished yet, both running and queued
+        return threads + queueCapacity - permits.availablePermits();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public void shutdown() {
+        // finishes the tasks already accepted and rejects new ones
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private interface Task {
+
+        List<CandidateResult> run() throws Exception;
+    }
+
+    private static class LocalizerThreadFactory implements ThreadFactory {
+        // platform daemon threads so an unused pool does not keep the JVM alive
+
+        private static final AtomicInteger poolNumber = new AtomicInteger();
+        private final int pool_id = poolNumber.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "barcode-localizer-" + pool_id + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
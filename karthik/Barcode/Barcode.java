@@ -17,11 +17,11 @@
 package karthik.Barcode;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
@@ -39,12 +39,30 @@ public abstract class Barcode {
 
     // flag to indicate what kind of searches to perform on image to locate barcode
     protected int sizeFlag = TryHarderFlags.VERY_SMALL_MATRIX.value();
+    protected TryHarderFlags sizeProfile = TryHarderFlags.VERY_SMALL_MATRIX;
+    // bit k set if tiles of searchParams.tileSize * 4^k are searched
+    public static final int ALL_SCALES = -1;
+    protected int scaleMask = ALL_SCALES;
     protected boolean postProcessResizeBarcode = true;
+    protected boolean locateOnly = false;  // candidates only carry their location, no crops are made
+    protected ExecutorService cropExecutor;  // crops all candidates in parallel before locateBarcode returns when set
+    // candidates are scored with CandidateVerifier and those scoring below verifierThreshold are dropped when set
+    protected boolean verifyCandidates = false;
+    protected double verifierThreshold = 0.35;
+    protected long verifiedCount, rejectedCount;
+    // locateBarcode stops early and returns what it has when the deadline passes, the token is cancelled
+    // or the thread is interrupted. deadline is a System.nanoTime value, 0 for none
+    protected long deadline = 0;
+    protected CancellationToken cancellationToken;
+    protected boolean partial;
     protected static double USE_ROTATED_RECT_ANGLE = 361;
 
     protected String name; // filename of barcode image file
 
     boolean DEBUG_IMAGES;   // flag if we want to show intermediate steps for debugging
+    protected DebugSink debugSink;  // receives intermediate Mats when set
+    protected boolean debugImage;   // true if the sink wants artifacts for the current search
+    private static DebugSink defaultDebugSink;
 
     SearchParameters searchParams; //various parameters and thresholds used during the search 
     protected ImageInfo img_details;
@@ -52,14 +70,36 @@ public abstract class Barcode {
     
     List<CandidateResult> candidateBarcodes = new ArrayList<CandidateResult>();    
     
+    // caller supplied areas to search or skip, in original image coordinates
+    private List<Rect> searchRegions, excludedRegions;
+    private Mat searchMask;
+    
+    static {
+        // loads OpenCV the first time a Barcode is used, unless the application has loaded it already
+        NativeLoader.load();
+    }
+
     static enum CodeType {
 
         LINEAR, MATRIX
     };
 
     Barcode(String filename, TryHarderFlags flag) throws IOException {
+        this(filename, flag, ImageLoadFlags.FULL_RESOLUTION);
+    }
+
+    Barcode(String filename, TryHarderFlags flag, ImageLoadFlags loadFlag) throws IOException {
         name = filename;
-        img_details = new ImageInfo(loadImage());
+        boolean grayscale = (loadFlag.value() & ImageLoadFlags.GRAYSCALE.value()) != 0;
+        if ((loadFlag.value() & ImageLoadFlags.REDUCED_RESOLUTION.value()) != 0) {
+            checkFilename();
+            img_details = ReducedImageLoader.load(name, SearchParameters.MAX_ROWS, grayscale);
+        } else if (grayscale) {
+            checkFilename();
+            img_details = ReducedImageLoader.loadGrayscale(name);
+        } else
+            img_details = new ImageInfo(loadImage());
+        setGrayscaleOnly(grayscale);
 
         rows = img_details.src_original.rows();
         cols = img_details.src_original.cols();
@@ -70,8 +110,19 @@ public abstract class Barcode {
     }
 
     Barcode(Mat img, TryHarderFlags flag) throws IOException {
+        this(img, flag, ImageLoadFlags.FULL_RESOLUTION);
+    }
+
+    Barcode(Mat img, TryHarderFlags flag, ImageLoadFlags loadFlag) throws IOException {
         // used in mobile implementation to avoid recreating Mat objects repeatedly
+        // img is already decoded so only the GRAYSCALE part of loadFlag applies
         img_details = new ImageInfo(img);
+        setGrayscaleOnly((loadFlag.value() & ImageLoadFlags.GRAYSCALE.value()) != 0);
+        if (img_details.grayscale_only && img.channels() > 1) {
+            img_details.src_original = new Mat();
+            Imgproc.cvtColor(img, img_details.src_original, Imgproc.COLOR_BGR2GRAY);
+            img_details.src_colour = img;
+        }
 
         rows = img_details.src_original.rows();
         cols = img_details.src_original.cols();
@@ -97,10 +148,22 @@ public abstract class Barcode {
             return false;
 
         barcode.candidateBarcodes.clear();
-        barcode.img_details.src_original = img;
-        Imgproc.resize(barcode.img_details.src_original, barcode.img_details.src_scaled, barcode.img_details.src_scaled.size(), 0, 0,
+        ImageInfo img_details = barcode.img_details;
+        if (img_details.grayscale_only && img.channels() > 1) {
+            // convert the new frame to a single channel once, reusing our own grayscale Mat if we have one
+            Mat gray = (img_details.src_colour != null) ? img_details.src_original : new Mat();
+            Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY);
+            img_details.src_original = gray;
+            img_details.src_colour = img;
+        } else {
+            img_details.src_original = img;
+            img_details.src_colour = null;
+        }
+        img_details.clearFullResolutionSource();
+        img_details.image_generation++;
+        Imgproc.resize(img_details.src_original, img_details.src_scaled, img_details.src_scaled.size(), 0, 0,
             Imgproc.INTER_AREA);
-        Imgproc.cvtColor(barcode.img_details.src_scaled, barcode.img_details.src_grayscale, Imgproc.COLOR_RGB2GRAY);
+        barcode.convertToGrayscale();
 
         return true;
     }
@@ -108,13 +171,125 @@ public abstract class Barcode {
     public void setBarcodeSize(TryHarderFlags size) {
         // at least one of the size flags must be set so it chooses NORMAL as the default if nothing is set
         sizeFlag = size.value();
+        sizeProfile = size;
         setSearchParameters(size);
     }
 
+    public void setSearchScales(int mask) {
+        // restricts the search to some of the tile scales - bit k of mask selects the scale
+        // that is 4^k times the base tile size. ALL_SCALES searches every scale
+        scaleMask = mask;
+    }
+
     public void doPostProcessResizeBarcode(boolean postProcess) {
         postProcessResizeBarcode = postProcess;
     }
 
+    public void doLocateOnly(boolean locate) {
+        // when set CandidateResults only hold the location of each candidate and getROI returns null
+        locateOnly = locate;
+    }
+
+    public void doVerifyCandidates(boolean verify) {
+        // scores each candidate region on the scaled image before it is cropped, drops unlikely ones
+        // and returns the rest best first
+        verifyCandidates = verify;
+    }
+
+    public void setVerifierThreshold(double threshold) {
+        // candidates scoring below threshold, from 0 to 1, are rejected - 0 only reorders them
+        verifierThreshold = threshold;
+    }
+
+    public long getVerifiedCount() {
+        // candidates scored by the verifier since this Barcode was created
+        return verifiedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public void setCropExecutor(ExecutorService executor) {
+        // when set locateBarcode crops, straightens and resizes all candidates in parallel on executor
+        // instead of leaving each crop to be made when it is first requested. null restores lazy crops
+        cropExecutor = executor;
+    }
+
+    public void doColourCandidates(boolean colour) {
+        // only has an effect in GRAYSCALE mode - candidates are otherwise always cropped from the colour image
+        img_details.colour_candidates = colour || !img_details.grayscale_only;
+    }
+
+    public void setSearchRegions(List<Rect> search, List<Rect> excluded) {
+        // restricts the search to the rectangles in search and skips the rectangles in excluded
+        // rectangles are in original image coordinates - search can be null or empty to search the whole image
+        // and excluded can be null if nothing is skipped. Replaces any mask set with setSearchMask
+        searchRegions = search;
+        excludedRegions = excluded;
+        searchMask = null;
+        applySearchRegions();
+    }
+
+    public void setSearchMask(Mat mask) {
+        // restricts the search to the non-zero pixels of a single channel CV_8U mask the size of the original image
+        // rectangles passed to setSearchRegions as excluded are still skipped
+        searchMask = mask;
+        searchRegions = null;
+        applySearchRegions();
+    }
+
+    public void clearSearchRegions() {
+        searchRegions = null;
+        excludedRegions = null;
+        searchMask = null;
+        applySearchRegions();
+    }
+
+    protected void applySearchRegions() {
+        // builds the search mask at the resolution the search runs at
+        // gradients and tile histograms are then only calculated for the area the mask covers
+        if (searchMask == null && (searchRegions == null || searchRegions.isEmpty())
+            && (excludedRegions == null || excludedRegions.isEmpty())) {
+            img_details.setSearchMask(null);
+            return;
+        }
+        
+        double scale_x = cols / (1.0 * img_details.originalCols());
+        double scale_y = rows / (1.0 * img_details.originalRows());
+        Mat mask = Mat.zeros(rows, cols, CvType.CV_8U);
+        
+        if (searchMask != null)
+            Imgproc.resize(searchMask, mask, mask.size(), 0, 0, Imgproc.INTER_NEAREST);
+        else if (searchRegions == null || searchRegions.isEmpty())
+            mask.setTo(new Scalar(255));
+        else
+            for (Rect region : searchRegions)
+                setRegion(mask, region, scale_x, scale_y, 255);
+        
+        if (excludedRegions != null)
+            for (Rect region : excludedRegions)
+                setRegion(mask, region, scale_x, scale_y, 0);
+        
+        img_details.setSearchMask(mask);
+    }
+
+    private void setRegion(Mat mask, Rect region, double scale_x, double scale_y, int value) {
+        // scales region to mask coordinates, rounding outwards, clips it to the mask and fills it with value
+        int left = Math.max((int) Math.floor(region.x * scale_x), 0);
+        int top = Math.max((int) Math.floor(region.y * scale_y), 0);
+        int right = Math.min((int) Math.ceil((region.x + region.width) * scale_x), mask.cols());
+        int bottom = Math.min((int) Math.ceil((region.y + region.height) * scale_y), mask.rows());
+        
+        if (right > left && bottom > top)
+            mask.submat(top, bottom, left, right).setTo(new Scalar(value));
+    }
+
+    private void setGrayscaleOnly(boolean grayscale) {
+        img_details.grayscale_only = grayscale;
+        img_details.colour_candidates = !grayscale;
+    }
+
     protected void setSearchParameters(TryHarderFlags flags) {
         // should not be used when multiple size flags are set
         // it will set the search parameters to one of them and ignore the others
@@ -137,6 +312,43 @@ public abstract class Barcode {
     // actual locateBarcode algo must be implemented in child class
     public abstract List<CandidateResult> locateBarcode() throws IOException;
 
+    public List<CandidateResult> locateBarcode(long timeBudget, TimeUnit unit) throws IOException {
+        // locateBarcode that stops once timeBudget has passed - isPartial says whether it finished
+        // the budget is checked between scales, candidates and crops, not inside them
+        long previous = deadline;
+        deadline = System.nanoTime() + Math.max(unit.toNanos(timeBudget), 1);
+        try {
+            return locateBarcode();
+        } finally {
+            deadline = previous;
+        }
+    }
+
+    public void setDeadline(long deadlineNanos) {
+        // applies to every later locateBarcode call - deadlineNanos is a System.nanoTime value, 0 for none
+        deadline = deadlineNanos;
+    }
+
+    public void setCancellationToken(CancellationToken token) {
+        // another thread can stop locateBarcode early by cancelling token, as it can by interrupting this thread
+        cancellationToken = token;
+    }
+
+    public boolean isPartial() {
+        // true if the last locateBarcode call stopped early and returned only the candidates found so far
+        return partial;
+    }
+
+    protected boolean shouldStop() {
+        // checked by locateBarcode between units of work - leaves the interrupt status set for the caller
+        if (partial)
+            return true;
+        partial = (deadline != 0 && System.nanoTime() - deadline >= 0)
+            || (cancellationToken != null && cancellationToken.isCancelled())
+            || Thread.currentThread().isInterrupted();
+        return partial;
+    }
+
     protected void preprocess_image() {
    // pre-process image to convert to grayscale and do morph black hat
         // also resizes image if it is above a specified size and sets the search parameters
@@ -145,9 +357,9 @@ public abstract class Barcode {
     // shrink image if it is above a certain size   
         // it reduces image size for large images which helps with processing speed
         // and reducing sensitivity to barcode size within the image
-        if (rows > searchParams.MAX_ROWS) {
-            cols = (int) (cols * (searchParams.MAX_ROWS * 1.0 / rows));
-            rows = searchParams.MAX_ROWS;
+        if (rows > SearchParameters.MAX_ROWS) {
+            cols = (int) (cols * (SearchParameters.MAX_ROWS * 1.0 / rows));
+            rows = SearchParameters.MAX_ROWS;
             img_details.src_scaled = new Mat(rows, cols, CvType.CV_32F);
             Imgproc.resize(img_details.src_original, img_details.src_scaled, img_details.src_scaled.size(), 0, 0, Imgproc.INTER_AREA);
         }
@@ -158,10 +370,20 @@ public abstract class Barcode {
         // do pre-processing to increase contrast
         img_details.initializeMats(rows, cols, searchParams);
         
-        Imgproc.cvtColor(img_details.src_scaled, img_details.src_grayscale, Imgproc.COLOR_RGB2GRAY);
+        convertToGrayscale();
+        applySearchRegions();
+    }
+
+    protected void convertToGrayscale() {
+        // imread returns images in BGR order so convert with BGR2GRAY
+        // single channel images are already grayscale so src_grayscale just shares src_scaled instead of copying it
+        if (img_details.src_scaled.channels() == 1)
+            img_details.src_grayscale = img_details.src_scaled;
+        else
+            Imgproc.cvtColor(img_details.src_scaled, img_details.src_grayscale, Imgproc.COLOR_BGR2GRAY);
     }
 
-    protected Mat scale_candidateBarcode(Mat candidate) {
+    protected static Mat scale_candidateBarcode(Mat candidate) {
     // resizes candidate image to have at least MIN_COLS columns and MIN_ROWS rows
         // called when RESIZE_BEFORE_DECODE is set - seems to help ZXing decode barcode
 
@@ -218,55 +440,46 @@ public abstract class Barcode {
         Imgproc.dilate(img_details.probabilities, img_details.probabilities, large_elemSE);
     }
 
-    protected double calc_rect_sum(Mat integral, int top_row, int bottom_row, int left_col, int right_col) {
-        // calculates sum of values within a rectangle from a given integral image
-        // if the right col or bottom row falls outside the image bounds, sets it to max col and max row
-        // in actuality, top_row - 1 and left_col - 1 are used - see p. 185 of Learning OpenCV ed. 1 by Gary Bradski for an explanation
-        // if top_row or left_col are outside image boundaries, it uses 0 for their value
-        // this is useful when one part of the rectangle lies outside the image bounds
-        
-        double top_left, top_right, bottom_left, bottom_right;
-        double sum;
+    public void setDebugSink(DebugSink sink) {
+        // intermediate Mats of each search are passed to sink, or nothing is written if sink is null
+        debugSink = sink;
+    }
 
-        int numRows = integral.rows();
-        int numCols = integral.cols();
-        
-        // do bounds checking on provided parameters
-        bottom_row = java.lang.Math.min(bottom_row, numRows);
-        right_col = java.lang.Math.min(right_col, numCols);
-        
-        bottom_right = integral.get(bottom_row, right_col)[0];
-        top_right = (top_row < 0) ? 0 : integral.get(top_row, right_col)[0];
-        top_left = (left_col < 0 || top_row < 0) ? 0 : integral.get(top_row, left_col)[0];
-        bottom_left = (left_col < 0) ? 0 : integral.get(bottom_row, left_col)[0];
+    protected void setDebugImages(boolean debug) {
+        // debug flag in the constructors writes intermediate images to the current directory
+        DEBUG_IMAGES = debug;
+        if (debug)
+            debugSink = getDefaultDebugSink();
+    }
 
-        sum = (bottom_right - bottom_left - top_right + top_left);
-        return sum;
+    private static synchronized DebugSink getDefaultDebugSink() {
+        if (defaultDebugSink == null)
+            defaultDebugSink = new AsyncFileDebugSink(new File("."));
+        return defaultDebugSink;
     }
 
-    protected static void write_Mat(String filename, Mat img) {
-        // write the contents of a Mat object to disk
-        try {
-            PrintStream original = new PrintStream(System.out);
-            PrintStream printStream = new PrintStream(new FileOutputStream(
-                new File(
-                    filename)));
-            System.setOut(printStream);
-            System.out.println(img.dump());
-            System.setOut(original);
-        } catch (IOException ioe) {
-        }
+    protected void beginDebugImage() {
+        // called at the start of each search
+        debugImage = (debugSink != null) && debugSink.beginImage(name);
+    }
 
+    protected void writeDebug(String stage, Mat img) {
+        if (debugImage)
+            debugSink.write(name, stage, img);
     }
 
     protected Mat loadImage() throws IOException {
     // reads the image file in the class variable name
+        checkFilename();
+        return Imgcodecs.imread(name, Imgcodecs.CV_LOAD_IMAGE_COLOR);
+    }
+
+    protected void checkFilename() throws IOException {
         // Imgcodecs produces an incomprehensible error message if the filename is incorrect so
         // we do the check ourselves first
         File f = new File(name);
         if (!f.isFile())
             throw new IOException("BarcodeLocalizer was called with an invalid filename " + name);
-        return Imgcodecs.imread(name, Imgcodecs.CV_LOAD_IMAGE_COLOR);
     }
 
 }
@@ -31,8 +31,9 @@ class CandidateBarcode {
     protected int num_blanks;
     protected SearchParameters params;
     protected int threshold;  // threshold for number of blanks around barcode
-    private static Compare_x x_comparator = null;
-    private static Compare_y y_comparator = null;
+    // created up front so that candidates cropped in parallel can share them
+    private static final Compare_x x_comparator = new Compare_x();
+    private static final Compare_y y_comparator = new Compare_y();
     
     protected CandidateBarcode(ImageInfo img_details, RotatedRect minRect, SearchParameters params) {
         this.img_details = img_details;
@@ -77,18 +78,12 @@ class CandidateBarcode {
     }
 
     protected static Compare_x get_x_comparator(){
-        // factory method to return one instance of a Compare_x object
-        if (x_comparator == null){
-            x_comparator = new Compare_x();            
-        }
+        // returns the one instance of a Compare_x object
         return x_comparator;
     }
     
     protected static Compare_y get_y_comparator(){
-        // factory method to return one instance of a Compare_x object
-        if (y_comparator == null){
-            y_comparator = new Compare_y();            
-        }
+        // returns the one instance of a Compare_y object
         return y_comparator;
     }
 
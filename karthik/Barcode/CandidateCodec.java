@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ *
+ * @author karthik
+ * Compact binary encoding of a list of CandidateResults for sending them to another process.
+ * All values are big endian. The layout is
+ *   header     int magic "BCR1", byte version, byte flags (bit 0 set if crops are deflated), short reserved, int count
+ *   candidate  float x, y for each of the 4 corners in ROI_coords, float score,
+ *              int crop rows, int crop cols, int crop length, crop bytes
+ * Crops are stored as raw 8 bit grayscale pixels in row order, deflated if the flag is set.
+ * Reader works directly on a ByteBuffer and makes no native calls so it can run on nodes without the OpenCV library.
+ */
+public final class CandidateCodec {
+
+    public static final int MAGIC = 0x42435231;  // "BCR1"
+    public static final byte VERSION = 1;
+    public static final byte FLAG_DEFLATE = 1;
+
+    static final int HEADER_BYTES = 12;
+    static final int CANDIDATE_HEADER_BYTES = 9 * 4 + 3 * 4;
+    // largest crop a Reader accepts, 8192 x 8192 grayscale pixels - far larger than any real candidate
+    static final long MAX_CROP_PIXELS = 8192L * 8192;
+    // deflate cannot compress by more than about 1032 to 1, so a deflated crop that claims more is corrupt
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private CandidateCodec() {
+    }
+
+    public static ByteBuffer encode(List<CandidateResult> candidates, boolean deflate) throws IOException {
+        // returns a buffer positioned at 0 with the limit at the end of the encoded data
+        // candidates without a crop e.g. from locate only mode are written with 0 rows and cols
+        byte[][] crops = new byte[candidates.size()][];
+        int[][] crop_sizes = new int[candidates.size()][];
+        int total = HEADER_BYTES;
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+
+        for (int i = 0; i < candidates.size(); i++) {
+            Mat gray = toGrayscale(candidates.get(i).getROI());
+            int rows = (gray == null) ? 0 : gray.rows();
+            int cols = (gray == null) ? 0 : gray.cols();
+            byte[] pixels = new byte[rows * cols];
+            if (pixels.length > 0)
+                gray.get(0, 0, pixels);
+            crops[i] = (deflater == null) ? pixels : deflate(deflater, pixels);
+            crop_sizes[i] = new int[]{rows, cols};
+            total += CANDIDATE_HEADER_BYTES + crops[i].length;
+        }
+        if (deflater != null)
+            deflater.end();
+
+        ByteBuffer buffer = ByteBuffer.allocate(total).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(MAGIC).put(VERSION).put(deflate ? FLAG_DEFLATE : 0).putShort((short) 0).putInt(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            CandidateResult candidate = candidates.get(i);
+            for (int c = 0; c < 4; c++) {
+                Point p = (candidate.ROI_coords != null && c < candidate.ROI_coords.length) ? candidate.ROI_coords[c] : null;
+                buffer.putFloat((p == null) ? 0f : (float) p.x);
+                buffer.putFloat((p == null) ? 0f : (float) p.y);
+            }
+            buffer.putFloat((float) candidate.score);
+            buffer.putInt(crop_sizes[i][0]).putInt(crop_sizes[i][1]).putInt(crops[i].length);
+            buffer.put(crops[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Mat toGrayscale(Mat roi) {
+        // crops are sent as 8 bit single channel data whatever type the candidate was cropped as
+        if (roi == null || roi.empty())
+            return null;
+        Mat gray = roi;
+        if (gray.channels() == 3) {
+            gray = new Mat();
+            Imgproc.cvtColor(roi, gray, Imgproc.COLOR_BGR2GRAY);
+        }
+        if (gray.depth() != CvType.CV_8U) {
+            Mat converted = new Mat();
+            gray.convertTo(converted, CvType.CV_8U);
+            gray = converted;
+        }
+        return gray.isContinuous() ? gray : gray.clone();
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[deflateBound(data.length)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length)
+                out = Arrays.copyOf(out, out.length * 2);
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    private static int deflateBound(int length) {
+        // worst case size of deflated data is slightly larger than the input
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+
+    /**
+     * Reads candidates encoded by CandidateCodec.encode without copying them out of the buffer.
+     * Only crops that were deflated are copied, when getCrop is called.
+     */
+    public static final class Reader {
+
+        private final ByteBuffer buffer;
+        private final boolean deflated;
+        private final int[] offsets;  // position of each candidate in buffer
+
+        public Reader(ByteBuffer data) {
+            buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int start = buffer.position();
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt(start) != MAGIC)
+                throw new IllegalArgumentException("buffer does not contain encoded barcode candidates");
+            byte version = buffer.get(start + 4);
+            if (version > VERSION)
+                throw new IllegalArgumentException("unsupported candidate encoding version " + version);
+            deflated = (buffer.get(start + 5) & FLAG_DEFLATE) != 0;
+
+            // nothing in the header is trusted - a bad count or length must not allocate or read past the data
+            int count = buffer.getInt(start + 8);
+            if (count < 0 || count > (buffer.remaining() - HEADER_BYTES) / CANDIDATE_HEADER_BYTES)
+                throw new IllegalArgumentException("candidate count " + count + " is corrupt");
+            offsets = new int[count];
+            int offset = start + HEADER_BYTES;
+            for (int i = 0; i < count; i++) {
+                if (offset + CANDIDATE_HEADER_BYTES > buffer.limit())
+                    throw new IllegalArgumentException("encoded candidates are truncated");
+                int rows = buffer.getInt(offset + 36), cols = buffer.getInt(offset + 40);
+                int length = buffer.getInt(offset + CANDIDATE_HEADER_BYTES - 4);
+                if (length < 0 || length > buffer.limit() - offset - CANDIDATE_HEADER_BYTES)
+                    throw new IllegalArgumentException("crop length of candidate " + i + " is corrupt");
+                // crops are 1 byte per pixel, so raw crops are exactly rows * cols bytes. The size of deflated crops
+                // is checked here because getCrop allocates it before inflating
+                long pixels = (long) rows * cols;
+                if (rows < 0 || cols < 0 || pixels > MAX_CROP_PIXELS || (!deflated && pixels != length)
+                    || (deflated && pixels > (long) length * MAX_DEFLATE_RATIO + 64))
+                    throw new IllegalArgumentException("crop size of candidate " + i + " is corrupt");
+                offsets[i] = offset;
+                offset += CANDIDATE_HEADER_BYTES + length;
+            }
+            if (offset > buffer.limit())
+                throw new IllegalArgumentException("encoded candidates are truncated");
+        }
+
+        public int size() {
+            return offsets.length;
+        }
+
+        public boolean isDeflated() {
+            return deflated;
+        }
+
+        public float getCornerX(int candidate, int corner) {
+            return buffer.getFloat(offsets[candidate] + corner * 8);
+        }
+
+        public float getCornerY(int candidate, int corner) {
+            return buffer.getFloat(offsets[candidate] + corner * 8 + 4);
+        }
+
+        public Point[] getCorners(int candidate) {
+            Point[] corners = new Point[4];
+            for (int c = 0; c < 4; c++)
+                corners[c] = new Point(getCornerX(candidate, c), getCornerY(candidate, c));
+            return corners;
+        }
+
+        public float getScore(int candidate) {
+            return buffer.getFloat(offsets[candidate] + 32);
+        }
+
+        public int getCropRows(int candidate) {
+            return buffer.getInt(offsets[candidate] + 36);
+        }
+
+        public int getCropCols(int candidate) {
+            return buffer.getInt(offsets[candidate] + 40);
+        }
+
+        public ByteBuffer getCrop(int candidate) {
+            // grayscale pixels in row order - a view into the buffer unless the crops were deflated
+            int offset = offsets[candidate];
+            int length = buffer.getInt(offset + CANDIDATE_HEADER_BYTES - 4);
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + CANDIDATE_HEADER_BYTES + length);
+            view.position(offset + CANDIDATE_HEADER_BYTES);
+            view = view.slice();
+            if (!deflated)
+                return view.asReadOnlyBuffer();
+
+            byte[] compressed = new byte[length];
+            view.get(compressed);
+            byte[] pixels = new byte[getCropRows(candidate) * getCropCols(candidate)];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int n = 0;
+                while (n < pixels.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(pixels, n, pixels.length - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IllegalArgumentException("crop " + candidate + " is truncated");
+                    n += inflated;
+                }
+                if (n != pixels.length)
+                    throw new IllegalArgumentException("crop " + candidate + " size is corrupt");
+            } catch (DataFormatException dfe) {
+                throw new IllegalArgumentException("crop " + candidate + " is not valid deflate data", dfe);
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(pixels);
+        }
+    }
+}
@@ -17,8 +17,11 @@
 
 package karthik.Barcode;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.utils.Converters;
@@ -30,6 +33,7 @@ import org.opencv.utils.Converters;
 public class CandidateMatrixBarcode extends CandidateBarcode{
 
     private static final Scalar ZERO_SCALAR = new Scalar(0);
+    private RotatedRect scaledRegion;  // candidate region in original image coordinates, set by locateCandidateRegion
     
     CandidateMatrixBarcode(ImageInfo img_details, RotatedRect minRect, SearchParameters params) {
         super(img_details, minRect, params);
@@ -43,55 +47,75 @@ public class CandidateMatrixBarcode extends CandidateBarcode{
         
     }
     
-    CandidateResult NormalizeCandidateRegion(double angle) {
-        /* candidateRegion is the RotatedRect which contains a candidate region for the barcode
-         // angle is the rotation angle or USE_ROTATED_RECT_ANGLE for this function to 
-         // estimate rotation angle from the rect parameter
-         // returns Mat containing cropped area(region of interest) with just the barcode 
-         // The barcode region is from the *original* image, not the scaled image
-         // the cropped area is also rotated as necessary to be horizontal or vertical rather than skewed        
-         // Some parts of this function are from http://felix.abecassis.me/2011/10/opencv-rotation-deskewing/
-         // and http://stackoverflow.com/questions/22041699/rotate-an-image-without-cropping-in-opencv-in-c
-         */
-        
-        double rotation_angle;
+    CandidateResult locateCandidateRegion() {
+        // expands the candidate region and calculates its location in the original image
+        // without touching any pixels. The crop is made later by cropCandidateRegion
         CandidateResult result = new CandidateResult();
 
         // scale candidate region back up to original size to return cropped part from *original* image 
         // need the 1.0 there to force floating-point arithmetic from int values
-        double scale_factor = img_details.src_original.rows() / (1.0 * img_details.src_grayscale.rows());        
+        double scale_factor = img_details.originalRows() / (1.0 * img_details.src_grayscale.rows());        
          
         // expand the region found - this helps capture the entire code including the border zone
         candidateRegion.size.width +=  2 * params.RECT_WIDTH;
         candidateRegion.size.height += 2 * params.RECT_HEIGHT;
 
         // calculate location of rectangle in original image and its corner points
-        RotatedRect scaledRegion = new RotatedRect(candidateRegion.center, candidateRegion.size, candidateRegion.angle);
+        scaledRegion = new RotatedRect(candidateRegion.center, candidateRegion.size, candidateRegion.angle);
         scaledRegion.center.x = scaledRegion.center.x * scale_factor;
         scaledRegion.center.y = scaledRegion.center.y * scale_factor;
         scaledRegion.size.height *= scale_factor;
         scaledRegion.size.width *= scale_factor;
         
-        scaledRegion.points(img_details.scaledCorners);
         // lets get the coordinates of the ROI in the original image and save it
-        
-        result.ROI_coords = Arrays.copyOf(img_details.scaledCorners, 4);
+        result.ROI_coords = new Point[4];
+        scaledRegion.points(result.ROI_coords);
+        result.region = scaledRegion.clone();
+        return result;
+    }
+
+    Rect getOriginalBounds() {
+        // bounding rectangle of the expanded region in the original image, which is the area cropCandidateRegion reads
+        // locateCandidateRegion must have been called first
+        Point[] corners = new Point[4];
+        scaledRegion.points(corners);
         
         // get the bounding rectangle of the ROI by sorting its corner points
         // we do it manually because RotatedRect can generate corner points outside the Mat area
-        Arrays.sort(img_details.scaledCorners, CandidateBarcode.get_x_comparator());
-        int leftCol = (int) img_details.scaledCorners[0].x;
-        int rightCol = (int) img_details.scaledCorners[3].x;
+        Arrays.sort(corners, CandidateBarcode.get_x_comparator());
+        int leftCol = (int) corners[0].x;
+        int rightCol = (int) corners[3].x;
         leftCol = (leftCol < 0) ? 0 : leftCol;
-        rightCol = (rightCol > img_details.src_original.cols() - 1) ? img_details.src_original.cols() - 1 : rightCol;
+        rightCol = (rightCol > img_details.originalCols() - 1) ? img_details.originalCols() - 1 : rightCol;
         
-        Arrays.sort(img_details.scaledCorners, CandidateBarcode.get_y_comparator());
-        int topRow = (int) img_details.scaledCorners[0].y;
-        int bottomRow = (int) img_details.scaledCorners[3].y;        
+        Arrays.sort(corners, CandidateBarcode.get_y_comparator());
+        int topRow = (int) corners[0].y;
+        int bottomRow = (int) corners[3].y;        
         topRow = (topRow < 0) ? 0 : topRow;
-        bottomRow = (bottomRow > img_details.src_original.rows() - 1) ? img_details.src_original.rows() - 1 : bottomRow;
+        bottomRow = (bottomRow > img_details.originalRows() - 1) ? img_details.originalRows() - 1 : bottomRow;
+        return new Rect(leftCol, topRow, rightCol - leftCol, bottomRow - topRow);
+    }
+
+    Mat cropCandidateRegion(double angle) throws IOException {
+        /* returns Mat containing cropped area(region of interest) with just the barcode 
+         // angle is the rotation angle or USE_ROTATED_RECT_ANGLE for this function to 
+         // estimate rotation angle from the rect parameter
+         // The barcode region is from the *original* image, not the scaled image
+         // the cropped area is also rotated as necessary to be horizontal or vertical rather than skewed        
+         // Some parts of this function are from http://felix.abecassis.me/2011/10/opencv-rotation-deskewing/
+         // and http://stackoverflow.com/questions/22041699/rotate-an-image-without-cropping-in-opencv-in-c
+         // locateCandidateRegion must have been called first
+         */
+        
+        // all scratch state is local so candidates of the same image can be cropped in parallel
+        double rotation_angle;
+        Point[] corners = new Point[4];
         
-        Mat ROI_region = img_details.src_original.submat(topRow, bottomRow, leftCol, rightCol);
+        Rect bounds = getOriginalBounds();
+        int leftCol = bounds.x, rightCol = bounds.x + bounds.width;
+        int topRow = bounds.y, bottomRow = bounds.y + bounds.height;
+        
+        Mat ROI_region = img_details.getOriginalRegion(topRow, bottomRow, leftCol, rightCol);
         
         // create a container that is a square with side = diagonal of ROI.
         // this is large enough to accommodate the ROI region with rotation without cropping it
@@ -106,7 +130,7 @@ public class CandidateMatrixBarcode extends CandidateBarcode{
         int offsetX = (newWidth - orig_cols) / 2;
         int offsetY = (newHeight - orig_rows) / 2;
 
-        Mat enlarged_ROI_container = new Mat(newWidth, newHeight, img_details.src_original.type());
+        Mat enlarged_ROI_container = new Mat(newWidth, newHeight, ROI_region.type());
         enlarged_ROI_container.setTo(ZERO_SCALAR);
         
         // copy ROI to centre of container and rotate it
@@ -121,55 +145,47 @@ public class CandidateMatrixBarcode extends CandidateBarcode{
             rotation_angle = angle;
 
         // perform the affine transformation
-        img_details.rotation_matrix = Imgproc.getRotationMatrix2D(enlarged_ROI_container_centre, rotation_angle, 1.0);
-        img_details.rotation_matrix.convertTo(img_details.rotation_matrix, CvType.CV_32F); // convert type so matrix multip. works properly
-        
-        img_details.newCornerCoord.setTo(ZERO_SCALAR);
-        
-        // convert scaledCorners to contain locations of corners in enlarged_ROI_container Mat
-        img_details.scaledCorners[0] = new Point(offsetX, offsetY);
-        img_details.scaledCorners[1] = new Point(offsetX, offsetY + orig_rows);
-        img_details.scaledCorners[2] = new Point(offsetX + orig_cols, offsetY);
-        img_details.scaledCorners[3] = new Point(offsetX + orig_cols, offsetY + orig_rows);
+        Mat rotation_matrix = Imgproc.getRotationMatrix2D(enlarged_ROI_container_centre, rotation_angle, 1.0);
+        double[] m = new double[6];
+        rotation_matrix.get(0, 0, m);
+        
+        // locations of corners of the ROI in enlarged_ROI_container Mat
+        corners[0] = new Point(offsetX, offsetY);
+        corners[1] = new Point(offsetX, offsetY + orig_rows);
+        corners[2] = new Point(offsetX + orig_cols, offsetY);
+        corners[3] = new Point(offsetX + orig_cols, offsetY + orig_rows);
         // calculate the new location for each corner point of the rectangle ROI after rotation
-        for (int r = 0; r < 4; r++) {
-            img_details.coord.put(0, 0, img_details.scaledCorners[r].x);
-            img_details.coord.put(1, 0, img_details.scaledCorners[r].y);
-            Core.gemm(img_details.rotation_matrix, img_details.coord, 1, img_details.delta, 0, img_details.newCornerCoord);
-            updatePoint(img_details.newCornerPoints.get(r), img_details.newCornerCoord.get(0, 0)[0], img_details.newCornerCoord.get(1, 0)[0]);
-        }
-        rotated.setTo(ZERO_SCALAR);
-        Imgproc.warpAffine(enlarged_ROI_container, rotated, img_details.rotation_matrix, enlarged_ROI_container.size(), Imgproc.INTER_CUBIC);
+        // the 2x3 affine matrix is applied directly rather than with a matrix multiplication for each point
+        List<Point> newCornerPoints = new ArrayList<Point>(4);
+        for (Point p : corners)
+            newCornerPoints.add(new Point(m[0] * p.x + m[1] * p.y + m[2], m[3] * p.x + m[4] * p.y + m[5]));
+        
+        Imgproc.warpAffine(enlarged_ROI_container, rotated, rotation_matrix, enlarged_ROI_container.size(), Imgproc.INTER_CUBIC);
         // sort rectangles points in order by first sorting all 4 points based on x
         // we then sort the first two based on y and then the next two based on y
         // this leaves the array in order top-left, bottom-left, top-right, bottom-right
-        Collections.sort(img_details.newCornerPoints, CandidateBarcode.get_x_comparator());
-        Collections.sort(img_details.newCornerPoints.subList(0, 2), CandidateBarcode.get_y_comparator());
-        Collections.sort(img_details.newCornerPoints.subList(2, 4), CandidateBarcode.get_y_comparator());
+        Collections.sort(newCornerPoints, CandidateBarcode.get_x_comparator());
+        Collections.sort(newCornerPoints.subList(0, 2), CandidateBarcode.get_y_comparator());
+        Collections.sort(newCornerPoints.subList(2, 4), CandidateBarcode.get_y_comparator());
         
         // calc height and width of rectangular region
 
-        double height = length(img_details.newCornerPoints.get(1), img_details.newCornerPoints.get(0));
-        double width = length(img_details.newCornerPoints.get(2), img_details.newCornerPoints.get(0));
+        double height = length(newCornerPoints.get(1), newCornerPoints.get(0));
+        double width = length(newCornerPoints.get(2), newCornerPoints.get(0));
         
         // create destination points for warpPerspective to map to
-        updatePoint(img_details.transformedPoints.get(0), 0, 0);
-        updatePoint(img_details.transformedPoints.get(1), 0, height);
-        updatePoint(img_details.transformedPoints.get(2), width, 0);
-        updatePoint(img_details.transformedPoints.get(3), width, height);
+        List<Point> transformedPoints = new ArrayList<Point>(4);
+        transformedPoints.add(new Point(0, 0));
+        transformedPoints.add(new Point(0, height));
+        transformedPoints.add(new Point(width, 0));
+        transformedPoints.add(new Point(width, height));
 
-        Mat perspectiveTransform = Imgproc.getPerspectiveTransform(Converters.vector_Point2f_to_Mat(img_details.newCornerPoints),
-            Converters.vector_Point2f_to_Mat(img_details.transformedPoints));
+        Mat perspectiveTransform = Imgproc.getPerspectiveTransform(Converters.vector_Point2f_to_Mat(newCornerPoints),
+            Converters.vector_Point2f_to_Mat(transformedPoints));
         Mat perspectiveOut = Mat.zeros((int) height + 2, (int) width + 2, CvType.CV_32F);
         Imgproc.warpPerspective(rotated, perspectiveOut, perspectiveTransform, perspectiveOut.size(),
             Imgproc.INTER_CUBIC);
 
-        result.ROI = perspectiveOut;
-        return result;
-    }
-    
-    private static void updatePoint(Point p, double newX, double newY){
-        p.x = newX;
-        p.y = newY;
+        return perspectiveOut;
     }
 }
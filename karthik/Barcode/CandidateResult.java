@@ -18,17 +18,193 @@
 package karthik.Barcode;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
 
 /**
  *
  * @author karthik
+ * Location of a candidate barcode and, on request, the straightened crop of it from the original image.
+ * The crop is only made the first time getROI or getCandidate is called, so callers that just want
+ * locations do not pay for cropping, warping and resizing. Crops must be requested before the Barcode
+ * they came from is given a new image with Barcode.updateImage.
+ * The public ROI and candidate fields are deprecated: they stay null until getROI or getCandidate has been called.
  */
 public class CandidateResult {
+    // still public for older callers - only filled in once the crop has been made, use getROI and getCandidate
+    @Deprecated
     public Mat ROI;
     public Point[] ROI_coords;
+    @Deprecated
     public BufferedImage candidate;
+    public double score;  // area of the candidate region divided by the area of its enclosing rectangle, from 0 to 1
+    RotatedRect region;   // candidate region in original image coordinates
+    TryHarderFlags profile;  // search profile and tile scale that found the candidate
+    int scale;
+    double verifierScore = 1;  // CandidateVerifier score if candidates were verified
+    
+    // set when the crop has not been made yet
+    private CandidateMatrixBarcode source;
+    private boolean resize;
+    private int image_generation;
+    
+    void setSource(CandidateMatrixBarcode source, boolean resize) {
+        this.source = source;
+        this.resize = resize;
+        image_generation = source.img_details.image_generation;
+        source.img_details.addCandidateBounds(source.getOriginalBounds());
+    }
+    
+    public RotatedRect getRegion(){
+        return region;
+    }
+    
+    public TryHarderFlags getProfile(){
+        return profile;
+    }
+    
+    public int getScale(){
+        // tile scale the candidate was found at, see Barcode.setSearchScales
+        return scale;
+    }
+    
+    public double getVerifierScore(){
+        // from 0 to 1, always 1 when Barcode.doVerifyCandidates is off
+        return verifierScore;
+    }
+    
+    public synchronized Mat getROI() throws IOException {
+        // straightened crop of the candidate from the original image, made on first use
+        // returns null in locate only mode
+        if (ROI == null && source != null) {
+            if (source.img_details.image_generation != image_generation)
+                throw new IllegalStateException("Image for this candidate has been replaced - crop candidates before calling Barcode.updateImage");
+            LocalizerEvents.Stage normalizationEvent = new LocalizerEvents.Stage(LocalizerEvents.NORMALIZATION);
+            normalizationEvent.begin();
+            Mat crop = source.cropCandidateRegion(Barcode.USE_ROTATED_RECT_ANGLE);
+            ROI = resize ? Barcode.scale_candidateBarcode(crop) : crop;
+            normalizationEvent.end();
+            if (normalizationEvent.shouldCommit()) {
+                normalizationEvent.outputBytes = ROI.total() * ROI.elemSize();
+                normalizationEvent.commit();
+            }
+            source = null;
+        }
+        return ROI;
+    }
+    
+    public synchronized BufferedImage getCandidate() throws IOException {
+        // getROI as a BufferedImage for decoders that take one
+        if (candidate == null && getROI() != null) {
+            LocalizerEvents.Stage conversionEvent = new LocalizerEvents.Stage(LocalizerEvents.CONVERSION);
+            conversionEvent.begin();
+            candidate = ImageDisplay.getBufImg(ROI);
+            conversionEvent.end();
+            if (conversionEvent.shouldCommit()) {
+                conversionEvent.outputBytes = ROI.total() * ROI.elemSize();
+                conversionEvent.commit();
+            }
+        }
+        return candidate;
+    }
+    
+    CandidateResult copy() {
+        // copy with its own coordinates that shares the crop, for results handed out more than once
+        CandidateResult copy = new CandidateResult();
+        copy.ROI = ROI;
+        copy.candidate = candidate;
+        copy.score = score;
+        copy.profile = profile;
+        copy.scale = scale;
+        copy.verifierScore = verifierScore;
+        copy.region = (region == null) ? null : region.clone();
+        if (ROI_coords != null) {
+            copy.ROI_coords = new Point[ROI_coords.length];
+            for (int i = 0; i < ROI_coords.length; i++)
+                copy.ROI_coords[i] = ROI_coords[i].clone();
+        }
+        return copy;
+    }
+    
+    public static void cropAll(List<CandidateResult> candidates, ExecutorService executor) throws IOException {
+        // makes the crops and BufferedImages of all candidates that do not have them yet in parallel on executor
+        // and waits for them
+        // each crop only uses its own scratch state so candidates from the same image can be cropped together
+        cropAll(candidates, executor, null);
+    }
+    
+    static boolean cropAll(List<CandidateResult> candidates, ExecutorService executor, Barcode stopper) throws IOException {
+        // when stopper is given, stops waiting once stopper.shouldStop() and returns false - crops that have not
+        // started are cancelled and the candidates keep their lazy crop
+        List<Future<BufferedImage>> crops = new ArrayList<Future<BufferedImage>>();
+        for (final CandidateResult candidate : candidates) {
+            synchronized (candidate) {
+                if (candidate.candidate != null || (candidate.ROI == null && candidate.source == null))
+                    continue;
+            }
+            // the BufferedImage is made in the task as well so the conversion also runs in parallel
+            crops.add(executor.submit(new Callable<BufferedImage>() {
+                public BufferedImage call() throws IOException {
+                    return candidate.getCandidate();
+                }
+            }));
+        }
+        
+        for (int i = 0; i < crops.size(); i++) {
+            Future<BufferedImage> crop = crops.get(i);
+            try {
+                if (stopper == null)
+                    crop.get();
+                else {
+                    while (!waitFor(crop)) {
+                        if (stopper.shouldStop()) {
+                            for (int j = i; j < crops.size(); j++)
+                                crops.get(j).cancel(false);
+                            return false;
+                        }
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                if (stopper != null) {
+                    for (int j = i; j < crops.size(); j++)
+                        crops.get(j).cancel(false);
+                    stopper.shouldStop();
+                    return false;
+                }
+                throw new InterruptedIOException("Interrupted while cropping candidates");
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+        return true;
+    }
+    
+    private static boolean waitFor(Future<?> crop) throws InterruptedException, ExecutionException {
+        // waits a short while so the stop conditions can be checked - returns false if the crop is not done yet
+        try {
+            crop.get(5, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException te) {
+            return false;
+        }
+    }
     
     public String getROI_coords(){
         StringBuffer result = new StringBuffer("");
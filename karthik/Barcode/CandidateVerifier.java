@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.util.Arrays;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+
+/**
+ *
+ * @author karthik
+ * Quick check of how much a candidate region looks like a barcode, made on the scaled grayscale image and the
+ * gradients already calculated for it, before any pixels are cropped or warped.
+ * Returns a score from 0 to 1 built from three cues
+ * - orientation: share of the edge pixels whose gradient direction is within 15 degrees of the dominant direction
+ *   or of the direction at right angles to it. Bars and matrix modules score high, text and texture spread out.
+ * - periodicity: profiles through the centre across and along the dominant direction are thresholded into runs,
+ *   which should be whole multiples of a module width and use more than one multiple. Grilles have only one.
+ * - finder pattern: a run sequence in the ratio 1:1:3:1:1 on any profile, as across a QR code finder pattern.
+ */
+class CandidateVerifier {
+
+    private static final int BINS = 12;  // 15 degree bins over the 180 degree range of gradient directions
+    private static final int DUMMY_ANGLE = 255;
+    private static final double MIN_EDGE_DENSITY = 0.02;  // regions with fewer edge pixels than this are blank
+
+    private final ImageInfo img_details;
+    private final int[] histogram = new int[BINS];
+
+    CandidateVerifier(ImageInfo img_details) {
+        this.img_details = img_details;
+    }
+
+    double score(RotatedRect region) {
+        // region is in src_grayscale coordinates
+        Rect search_box = img_details.getSearchBox();
+        Rect box = clip(region.boundingRect(), search_box);
+        if (box.width < 4 || box.height < 4)
+            return 0;
+
+        // gradient Mats only cover the search box
+        byte[] directions = new byte[box.width * box.height];
+        img_details.gradient_direction.submat(new Rect(box.x - search_box.x, box.y - search_box.y, box.width, box.height))
+            .get(0, 0, directions);
+        Arrays.fill(histogram, 0);
+        int edges = 0;
+        for (byte d : directions) {
+            int angle = (d & 0xff) - 1;  // directions are stored as angle + 1
+            if (angle < 0 || angle >= 180 || (d & 0xff) == DUMMY_ANGLE)
+                continue;
+            histogram[angle / (180 / BINS)]++;
+            edges++;
+        }
+        if (edges < MIN_EDGE_DENSITY * directions.length)
+            return 0;
+
+        int dominant = 0;
+        double best = 0;
+        for (int b = 0; b < BINS; b++) {
+            double mass = window(b) + window(b + BINS / 2);
+            if (mass > best) {
+                best = mass;
+                dominant = b;
+            }
+        }
+        // a uniform histogram gives 0.5 so scale that to 0 and a perfect code to 1
+        double orientation = clamp((best / edges - 0.5) / 0.4);
+
+        byte[] pixels = new byte[box.width * box.height];
+        img_details.src_grayscale.submat(box).get(0, 0, pixels);
+        double theta = Math.toRadians(dominant * (180.0 / BINS) + 90.0 / BINS);
+        double length = Math.max(region.size.width, region.size.height);
+        double periodicity = 0;
+        boolean finder = false;
+        for (int axis = 0; axis < 2; axis++) {
+            double angle = theta + axis * Math.PI / 2;
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            for (int line = -1; line <= 1; line++) {
+                // three parallel profiles, through the centre and a quarter of the way to each side
+                Point start = new Point(region.center.x - sin * line * length / 4 - cos * length / 2,
+                    region.center.y + cos * line * length / 4 - sin * length / 2);
+                int[] runs = profileRuns(pixels, box, start, cos, sin, (int) length);
+                periodicity = Math.max(periodicity, periodicity(runs));
+                finder = finder || hasFinderPattern(runs);
+            }
+        }
+
+        double score = 0.5 * orientation + 0.5 * periodicity;
+        return finder ? Math.max(score, 0.75) : score;
+    }
+
+    private int window(int bin) {
+        // counts of bin and the bins on either side of it
+        return histogram[(bin + BINS - 1) % BINS] + histogram[bin % BINS] + histogram[(bin + 1) % BINS];
+    }
+
+    private static int[] profileRuns(byte[] pixels, Rect box, Point start, double cos, double sin, int length) {
+        // samples the grayscale values along a line, thresholds them at their mean and returns the run lengths
+        // runs touching either end of the line are dropped since they are cut off
+        int[] samples = new int[length];
+        int count = 0;
+        long sum = 0;
+        for (int t = 0; t < length; t++) {
+            int x = (int) Math.round(start.x + t * cos) - box.x;
+            int y = (int) Math.round(start.y + t * sin) - box.y;
+            if (x < 0 || y < 0 || x >= box.width || y >= box.height)
+                continue;
+            samples[count] = pixels[y * box.width + x] & 0xff;
+            sum += samples[count++];
+        }
+        if (count < 2)
+            return new int[0];
+
+        double mean = sum / (1.0 * count);
+        int[] runs = new int[count];
+        int num_runs = 0, run = 1;
+        boolean dark = samples[0] < mean;
+        for (int i = 1; i < count; i++) {
+            boolean d = samples[i] < mean;
+            if (d == dark) {
+                run++;
+                continue;
+            }
+            runs[num_runs++] = dark ? -run : run;  // dark runs are negative so finder patterns can be checked
+            dark = d;
+            run = 1;
+        }
+        return (num_runs < 2) ? new int[0] : Arrays.copyOfRange(runs, 1, num_runs);
+    }
+
+    private static double periodicity(int[] runs) {
+        if (runs.length < 6)
+            return 0;
+        int[] lengths = new int[runs.length];
+        for (int i = 0; i < runs.length; i++)
+            lengths[i] = Math.abs(runs[i]);
+        Arrays.sort(lengths);
+        double module = Math.max(lengths[lengths.length / 5], 1);  // narrow runs give the module width
+
+        int fits = 0, max_multiple = 1;
+        for (int len : lengths) {
+            double multiple = len / module;
+            long whole = Math.round(multiple);
+            if (whole >= 1 && whole <= 6 && Math.abs(multiple - whole) <= 0.35) {
+                fits++;
+                max_multiple = Math.max(max_multiple, (int) whole);
+            }
+        }
+        double score = (fits / (1.0 * lengths.length)) * Math.min(1.0, lengths.length / 12.0);
+        // runs that are all the same width look like a grille rather than a code
+        return (max_multiple < 2) ? score / 2 : score;
+    }
+
+    private static boolean hasFinderPattern(int[] runs) {
+        // looks for dark, light, dark, light, dark runs in the ratio 1:1:3:1:1
+        for (int i = 0; i + 5 <= runs.length; i++) {
+            if (runs[i] >= 0)
+                continue;
+            double unit = (Math.abs(runs[i]) + runs[i + 1] + Math.abs(runs[i + 2]) + runs[i + 3] + Math.abs(runs[i + 4])) / 7.0;
+            if (unit < 1)
+                continue;
+            if (near(Math.abs(runs[i]), unit) && near(runs[i + 1], unit) && near(Math.abs(runs[i + 2]), 3 * unit)
+                && near(runs[i + 3], unit) && near(Math.abs(runs[i + 4]), unit))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean near(int run, double expected) {
+        return Math.abs(run - expected) <= Math.max(expected / 2, 1);
+    }
+
+    private static Rect clip(Rect r, Rect bounds) {
+        int left = Math.max(r.x, bounds.x), top = Math.max(r.y, bounds.y);
+        int right = Math.min(r.x + r.width, bounds.x + bounds.width);
+        int bottom = Math.min(r.y + r.height, bounds.y + bounds.height);
+        return new Rect(left, top, Math.max(right - left, 0), Math.max(bottom - top, 0));
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Receives intermediate Mats from the search for debugging e.g. gradient magnitudes and directions,
+ * tile probabilities and the image annotated with candidate regions.
+ * Implementations are called on the localization thread so they must return quickly and
+ * may be shared by several Barcode objects running on different threads.
+ */
+public interface DebugSink {
+
+    // called once at the start of each search, returns true if artifacts should be written for this image
+    // lets implementations sample e.g. one image in N
+    boolean beginImage(String imageName);
+
+    // stage names the artifact e.g. "magnitudes". img is reused by the search after this returns
+    // so an implementation that keeps it must copy it
+    void write(String imageName, String stage, Mat img);
+}
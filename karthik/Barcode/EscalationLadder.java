@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Decodes candidates with the cheapest settings first and only retries the ones that fail with more expensive settings.
+ * The levels, in the order they are tried, are
+ * RAW - the crop as it is, without upscaling, with a normal decode
+ * UPSCALED - the crop upscaled to at least 200x200 as Barcode.doPostProcessResizeBarcode does
+ * TRY_HARDER - the upscaled crop with the decoder's try harder mode
+ * PROFILE - only when no candidate decoded at all, the whole image is searched again with each fallback profile
+ * and the new candidates go up the other levels again
+ * Any level can be left out. Attempt and success counts for each level show which levels are worth keeping.
+ */
+public class EscalationLadder {
+
+    public enum Level {
+        RAW, UPSCALED, TRY_HARDER, PROFILE
+    }
+
+    public interface Decoder {
+
+        // returns the text of the code in image or null if it cannot be decoded
+        String decode(BufferedImage image, boolean tryHarder);
+    }
+
+    public static class Decoded {
+
+        public final CandidateResult candidate;
+        public final String text;
+        public final Level level;  // level that decoded it
+
+        Decoded(CandidateResult candidate, String text, Level level) {
+            this.candidate = candidate;
+            this.text = text;
+            this.level = level;
+        }
+    }
+
+    private final Decoder decoder;
+    private final EnumSet<Level> levels;
+    private List<TryHarderFlags> fallbackProfiles = Arrays.asList(TryHarderFlags.NORMAL, TryHarderFlags.SMALL, TryHarderFlags.LARGE);
+
+    private final AtomicLongArray attempts = new AtomicLongArray(Level.values().length);
+    private final AtomicLongArray successes = new AtomicLongArray(Level.values().length);
+
+    public EscalationLadder(Decoder decoder) {
+        this(decoder, EnumSet.allOf(Level.class));
+    }
+
+    public EscalationLadder(Decoder decoder, EnumSet<Level> levels) {
+        if (levels.isEmpty() || levels.equals(EnumSet.of(Level.PROFILE)))
+            throw new IllegalArgumentException("EscalationLadder needs at least one of RAW, UPSCALED or TRY_HARDER");
+        this.decoder = decoder;
+        this.levels = levels;
+    }
+
+    public void setFallbackProfiles(List<TryHarderFlags> profiles) {
+        // profiles for the PROFILE level, tried in order - the profile the barcode already uses is skipped
+        fallbackProfiles = new ArrayList<TryHarderFlags>(profiles);
+    }
+
+    public List<Decoded> decode(Barcode barcode) throws IOException {
+        // locates candidates in barcode's image and decodes them - upscaling is left to the ladder
+        // barcode's resize, locate only and size settings are changed for the search and restored afterwards
+        boolean resize = barcode.postProcessResizeBarcode;
+        boolean locate_only = barcode.locateOnly;
+        TryHarderFlags original = barcode.sizeProfile;
+        barcode.doPostProcessResizeBarcode(false);
+        barcode.doLocateOnly(false);
+        try {
+            List<CandidateResult> candidates = barcode.locateBarcode();
+            int searched = candidates.size();
+            List<Decoded> decoded = decodeCandidates(candidates, null);
+            if (!decoded.isEmpty() || !levels.contains(Level.PROFILE))
+                return decoded;
+
+            for (TryHarderFlags profile : fallbackProfiles) {
+                if (profile == original)
+                    continue;
+                barcode.setBarcodeSize(profile);
+                // profiles without a usable tile size cannot be searched
+                if (barcode.searchParams.tileSize < 1)
+                    continue;
+                attempts.incrementAndGet(Level.PROFILE.ordinal());
+                // locateBarcode returns all candidates found so far for this image so only take the new ones
+                candidates = barcode.locateBarcode();
+                int from = Math.min(searched, candidates.size());
+                decoded = decodeCandidates(new ArrayList<CandidateResult>(candidates.subList(from, candidates.size())), Level.PROFILE);
+                searched = candidates.size();
+                if (!decoded.isEmpty()) {
+                    successes.incrementAndGet(Level.PROFILE.ordinal());
+                    return decoded;
+                }
+            }
+            return decoded;
+        } finally {
+            if (barcode.sizeProfile != original)
+                barcode.setBarcodeSize(original);
+            barcode.doPostProcessResizeBarcode(resize);
+            barcode.doLocateOnly(locate_only);
+        }
+    }
+
+    private List<Decoded> decodeCandidates(List<CandidateResult> candidates, Level reported) throws IOException {
+        // reported is the level to credit successes to, null to credit the level that decoded each candidate
+        List<Decoded> decoded = new ArrayList<Decoded>();
+        for (CandidateResult candidate : candidates) {
+            Mat crop = candidate.getROI();
+            if (crop == null)
+                continue;
+            BufferedImage upscaled = null;
+            for (Level level : levels) {
+                if (level == Level.PROFILE)
+                    continue;
+                BufferedImage image;
+                if (level == Level.RAW)
+                    image = candidate.getCandidate();
+                else {
+                    if (upscaled == null)
+                        upscaled = ImageDisplay.getBufImg(Barcode.scale_candidateBarcode(crop));
+                    image = upscaled;
+                }
+                if (reported == null)
+                    attempts.incrementAndGet(level.ordinal());
+                String text = decoder.decode(image, level == Level.TRY_HARDER);
+                if (text != null) {
+                    if (reported == null)
+                        successes.incrementAndGet(level.ordinal());
+                    decoded.add(new Decoded(candidate, text, (reported == null) ? level : reported));
+                    break;
+                }
+            }
+        }
+        return decoded;
+    }
+
+    public long getAttemptCount(Level level) {
+        // decode attempts at this level - for PROFILE the number of fallback searches
+        return attempts.get(level.ordinal());
+    }
+
+    public long getSuccessCount(Level level) {
+        return successes.get(level.ordinal());
+    }
+
+    public String getStatistics() {
+        StringBuilder stats = new StringBuilder();
+        for (Level level : levels) {
+            long tried = getAttemptCount(level), decoded = getSuccessCount(level);
+            stats.append(level).append(' ').append(decoded).append('/').append(tried);
+            if (tried > 0)
+                stats.append(" (").append(Math.round(100.0 * decoded / tried)).append("%)");
+            stats.append("  ");
+        }
+        return stats.toString().trim();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+/**
+ *
+ * @author karthik
+ * Inner loops of the integer gradient stage, used by JavaBackend and IntegerGradients.
+ * The plain Java loops here are always available. VectorKernels does the same work with the
+ * jdk.incubator.vector API and is used instead when it can be loaded. It lives in the separate vector source
+ * directory because it has to be compiled and run with the incubator module:
+ *   javac --add-modules jdk.incubator.vector -cp [classes] -d [classes] vector/karthik/Barcode/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector ...
+ * Without the module, or with -Dbarcode.vector=false, the plain loops are used. Both give identical results.
+ */
+class GradientKernels {
+
+    static final GradientKernels INSTANCE = load();
+
+    private static GradientKernels load() {
+        if (!"false".equals(System.getProperty("barcode.vector"))) {
+            try {
+                return (GradientKernels) Class.forName("karthik.Barcode.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                // VectorKernels was not compiled into the classpath
+            } catch (LinkageError le) {
+                // jdk.incubator.vector is not in the boot layer of this JVM
+            }
+        }
+        return new GradientKernels();
+    }
+
+    String getName() {
+        return "scalar";
+    }
+
+    void scharrRow(byte[] src, int up, int mid, int down, int cols, short[] dx, short[] dy) {
+        // 3x3 Scharr derivatives for columns 1 to cols - 2 of the row starting at mid
+        // up and down are the offsets of the rows above and below it
+        scharrRange(src, up, mid, down, 1, cols - 1, dx, dy);
+    }
+
+    static void scharrRange(byte[] src, int up, int mid, int down, int from, int to, short[] dx, short[] dy) {
+        // scharrRow for columns from to to - 1
+        for (int x = from; x < to; x++) {
+            int tl = src[up + x - 1] & 0xff, tc = src[up + x] & 0xff, tr = src[up + x + 1] & 0xff;
+            int ml = src[mid + x - 1] & 0xff, mr = src[mid + x + 1] & 0xff;
+            int bl = src[down + x - 1] & 0xff, bc = src[down + x] & 0xff, br = src[down + x + 1] & 0xff;
+            dx[mid + x] = (short) (3 * (tr - tl + br - bl) + 10 * (mr - ml));
+            dy[mid + x] = (short) (3 * (bl - tl + br - tr) + 10 * (bc - tc));
+        }
+    }
+
+    void directions(short[] dx, short[] dy, int size, byte[] lut, int ratio_bits, int[] magnitudes, byte[] directions,
+        int[] min_max) {
+        // fills magnitudes with |dx| + |dy| and directions with the direction code from lut, which holds
+        // (1 << ratio_bits) + 1 entries for each octant, and stores the smallest and largest magnitude in min_max
+        int min_mag = Integer.MAX_VALUE, max_mag = 0;
+        for (int i = 0; i < size; i++) {
+            int mag = direction(dx[i], dy[i], lut, ratio_bits, directions, i);
+            magnitudes[i] = mag;
+            if (mag < min_mag)
+                min_mag = mag;
+            if (mag > max_mag)
+                max_mag = mag;
+        }
+        min_max[0] = min_mag;
+        min_max[1] = max_mag;
+    }
+
+    static int direction(int x, int y, byte[] lut, int ratio_bits, byte[] directions, int i) {
+        // direction code of one pixel into directions[i] - returns its magnitude
+        int ax = (x < 0) ? -x : x;
+        int ay = (y < 0) ? -y : y;
+        int mag = ax + ay;
+        if (mag == 0) {
+            directions[i] = 1;
+            return 0;
+        }
+        // octants are 0: dx, dy same sign |dy| <= |dx|, 1: same sign |dy| > |dx|
+        // 2: opposite sign |dy| > |dx|, 3: opposite sign |dy| <= |dx|
+        boolean same_sign = (x ^ y) >= 0;
+        int steps = (1 << ratio_bits) + 1;
+        if (ay <= ax)
+            directions[i] = lut[(same_sign ? 0 : 3) * steps + (ay << ratio_bits) / ax];
+        else
+            directions[i] = lut[(same_sign ? 1 : 2) * steps + (ax << ratio_bits) / ay];
+        return mag;
+    }
+}
@@ -17,11 +17,12 @@
 
 package karthik.Barcode;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgcodecs.Imgcodecs;
 
 /**
  *
@@ -38,27 +39,38 @@ class ImageInfo {
     Mat scharr_x, scharr_y;
     Mat mask;
     
-    // matrices used in CandidateMatrixBarcode class
-    Mat rotation_matrix;
-    Mat delta = Mat.zeros(3, 3, CvType.CV_32F);
-    Mat newCornerCoord = Mat.zeros(2, 1, CvType.CV_32F);
-    Mat coord = Mat.ones(3, 1, CvType.CV_32F);    
+    // set when src_original was decoded from src_file at reduced resolution or in grayscale
+    // candidate regions are then read from the full resolution image in src_file on demand
+    String src_file;
+    int full_rows, full_cols;
+    boolean reduced;
+    private volatile Mat src_full;
+    // union of the areas that candidate crops will read from src_file. It is decoded in one pass on the first
+    // crop, so a file is decoded once per set of candidates rather than once per candidate
+    private Rect region_union;
+    private Mat src_union;
+    private Rect src_union_box;
+    
+    // in grayscale mode src_original has a single channel and src_colour holds the caller's colour image, if any
+    boolean grayscale_only;
+    boolean colour_candidates = true;  // false if candidate regions should be cropped from grayscale data
+    Mat src_colour;
+    
+    // optional mask of the areas to search at src_grayscale resolution - non-zero pixels are searched
+    // gradients are only calculated within search_box, the bounding box of the non-zero pixels
+    // so gradient_direction and gradient_magnitude have the size of search_box
+    Mat search_mask;
+    
+    // incremented each time the image is replaced so candidates can tell if their crop can still be made
+    int image_generation = 0;
+    Rect search_box;
     
-    List<Point> newCornerPoints = new ArrayList<Point>(4);
-    List<Point> transformedPoints = new ArrayList<Point>(4);
-        
-    Point[] scaledCorners = new Point[4];
-
     // used in histogram calculation
     protected static final int BIN_WIDTH = 15;  // bin width for histogram    
     protected static final int bins = 180 / BIN_WIDTH;
 
     int probMatRows, probMatCols;
-    Mat edgeDensity;
-    List<Mat> histograms = new ArrayList<Mat>();
-    List<Mat> histIntegrals = new ArrayList<Mat>();
-    
-    Integer[] histArray = new Integer[bins];
+    TileHistogramPyramid tileHistograms = new TileHistogramPyramid();
     
     ImageInfo(Mat src) {
        src_original = src;
@@ -68,12 +80,158 @@ class ImageInfo {
        scharr_x = new Mat();
        scharr_y = new Mat();
        mask = new Mat();
-       
-       // create List of Point's for CandidateMatrixBarcode
-       for(int r = 0; r < 4; r++){
-           newCornerPoints.add(new Point());
-           transformedPoints.add(new Point());
-       }
+    }
+    
+    protected void setFullResolutionSource(String filename, int rows, int cols){
+        src_file = filename;
+        full_rows = rows;
+        full_cols = cols;
+        reduced = (rows != src_original.rows()) || (cols != src_original.cols());
+        src_full = null;
+        clearCandidateBounds();
+    }
+    
+    protected void clearFullResolutionSource(){
+        // called when src_original is replaced by a full resolution image e.g. a new video frame
+        src_file = null;
+        reduced = false;
+        src_full = null;
+        clearCandidateBounds();
+    }
+    
+    synchronized void addCandidateBounds(Rect bounds){
+        // called for each candidate that may be cropped later - only needed when crops are read from src_file
+        if (src_file == null || bounds.width <= 0 || bounds.height <= 0)
+            return;
+        if (region_union == null)
+            region_union = new Rect(bounds.x, bounds.y, bounds.width, bounds.height);
+        else {
+            int left = Math.min(region_union.x, bounds.x), top = Math.min(region_union.y, bounds.y);
+            int right = Math.max(region_union.x + region_union.width, bounds.x + bounds.width);
+            int bottom = Math.max(region_union.y + region_union.height, bounds.y + bounds.height);
+            region_union = new Rect(left, top, right - left, bottom - top);
+        }
+    }
+    
+    private synchronized void clearCandidateBounds(){
+        region_union = null;
+        src_union = null;
+        src_union_box = null;
+    }
+    
+    protected int originalRows(){
+        return reduced ? full_rows : src_original.rows();
+    }
+    
+    protected int originalCols(){
+        return reduced ? full_cols : src_original.cols();
+    }
+    
+    protected Mat getOriginalRegion(int topRow, int bottomRow, int leftCol, int rightCol) throws IOException{
+        // returns the given region of the full resolution image in colour or grayscale depending on colour_candidates
+        // when src_original was decoded at reduced resolution or in grayscale only the region itself is decoded from src_file
+        boolean colour = colour_candidates && (src_original.channels() == 1);
+        
+        if (colour && src_colour != null)
+            return src_colour.submat(topRow, bottomRow, leftCol, rightCol);
+        
+        if ((!reduced && !colour) || src_file == null)
+            return src_original.submat(topRow, bottomRow, leftCol, rightCol);
+        
+        int channels = (colour || !grayscale_only) ? 3 : 1;
+        Mat full = src_full;
+        if (full == null || full.channels() != channels){
+            Mat region = readCandidateRegion(topRow, bottomRow, leftCol, rightCol, channels);
+            if (region != null)
+                return region;
+            full = getFullImage(channels);
+        }
+        return full.submat(topRow, bottomRow, leftCol, rightCol);
+    }
+    
+    private synchronized Mat readCandidateRegion(int topRow, int bottomRow, int leftCol, int rightCol, int channels) throws IOException{
+        // crops the region from the decoded union of the candidate areas, decoding the union first if it is not
+        // decoded yet or has grown since. A region outside the union is decoded on its own
+        // returns null if ImageIO cannot read the file
+        Rect region = new Rect(leftCol, topRow, rightCol - leftCol, bottomRow - topRow);
+        if (src_union == null || src_union.channels() != channels || !contains(src_union_box, region)) {
+            if (region_union == null || !contains(region_union, region))
+                return ReducedImageLoader.readRegion(src_file, topRow, bottomRow, leftCol, rightCol, channels == 1);
+            Rect box = region_union;
+            Mat decoded = ReducedImageLoader.readRegion(src_file, box.y, box.y + box.height, box.x, box.x + box.width, channels == 1);
+            if (decoded == null)
+                return null;
+            src_union = decoded;
+            src_union_box = box;
+        }
+        return src_union.submat(topRow - src_union_box.y, bottomRow - src_union_box.y,
+            leftCol - src_union_box.x, rightCol - src_union_box.x);
+    }
+    
+    private static boolean contains(Rect outer, Rect inner){
+        return inner.x >= outer.x && inner.y >= outer.y && inner.x + inner.width <= outer.x + outer.width
+            && inner.y + inner.height <= outer.y + outer.height;
+    }
+    
+    private synchronized Mat getFullImage(int channels){
+        // ImageIO cannot read this file so decode the whole image once and keep it for later candidates
+        // synchronized because candidates can be cropped in parallel
+        if (src_full == null || src_full.channels() != channels){
+            int flag = (channels == 1) ? Imgcodecs.CV_LOAD_IMAGE_GRAYSCALE : Imgcodecs.CV_LOAD_IMAGE_COLOR;
+            src_full = Imgcodecs.imread(src_file, flag | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        }
+        return src_full;
+    }
+    
+    protected void setSearchMask(Mat mask){
+        // mask must be CV_8U with the same size as src_grayscale or null to search the whole image
+        search_mask = mask;
+        search_box = null;
+        if (mask == null)
+            return;
+        
+        int rows = mask.rows(), cols = mask.cols();
+        byte[] pixels = new byte[rows * cols];
+        mask.get(0, 0, pixels);
+        int top = rows, bottom = -1, left = cols, right = -1;
+        for (int r = 0; r < rows; r++)
+            for (int c = 0; c < cols; c++)
+                if (pixels[r * cols + c] != 0){
+                    top = Math.min(top, r);
+                    bottom = r;
+                    left = Math.min(left, c);
+                    right = Math.max(right, c);
+                }
+        // an empty mask gets an empty box so nothing is searched
+        search_box = (bottom < 0) ? new Rect(0, 0, 0, 0) : new Rect(left, top, right - left + 1, bottom - top + 1);
+    }
+    
+    protected Rect getSearchBox(){
+        return (search_box != null) ? search_box : new Rect(0, 0, src_grayscale.cols(), src_grayscale.rows());
+    }
+    
+    protected Mat getSearchArea(){
+        // part of src_grayscale that gradients are calculated for
+        return (search_box != null) ? src_grayscale.submat(search_box) : src_grayscale;
+    }
+    
+    protected byte[] getSearchMaskPixels(){
+        // pixels of search_mask within search_box or null if the whole image is searched
+        if (search_mask == null)
+            return null;
+        byte[] pixels = new byte[search_box.width * search_box.height];
+        search_mask.submat(search_box).get(0, 0, pixels);
+        return pixels;
+    }
+    
+    protected boolean inSearchArea(Point p){
+        // p is in src_grayscale coordinates
+        if (search_mask == null)
+            return true;
+        int row = (int) p.y, col = (int) p.x;
+        if (row < 0 || col < 0 || row >= search_mask.rows() || col >= search_mask.cols())
+            return false;
+        return search_mask.get(row, col)[0] != 0;
     }
     
     protected void initializeMats(int rows, int cols, SearchParameters searchParams){
@@ -81,12 +239,6 @@ class ImageInfo {
         src_grayscale = new Mat(rows, cols, CvType.CV_32F);
         probMatRows = probabilities.rows();
         probMatCols = probabilities.cols();
-        edgeDensity = Mat.zeros((int) (rows/(1.0 * searchParams.tileSize)),(int) (cols/(1.0 * searchParams.tileSize)), CvType.CV_16U);
-        // create Mat objects to contain integral histograms
-        for(int r = 0; r < bins; r++){
-            histograms.add(Mat.zeros((int) (rows/(1.0 * searchParams.tileSize) + 1), (int) (cols/(1.0 * searchParams.tileSize) + 1), CvType.CV_32F));
-            histIntegrals.add(Mat.zeros((int)(rows/(1.0 * searchParams.tileSize) + 1), (int) (cols/(1.0 * searchParams.tileSize) + 1), CvType.CV_32FC1));
-        }
     }
     
 }
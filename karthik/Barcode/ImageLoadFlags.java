@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+/**
+ *
+ * @author karthik
+ * enum to control how an image file is decoded when a Barcode is created from a filename
+ * default is FULL_RESOLUTION
+ */
+public enum ImageLoadFlags {
+    /*
+    FULL_RESOLUTION decodes the whole image in colour, which is what the localizer has always done
+    REDUCED_RESOLUTION lets the decoder shrink the image by 2, 4 or 8 while decoding it, since it will be
+    scaled down to MAX_ROWS anyway. Candidate regions are then read from the full resolution file on demand
+    GRAYSCALE decodes or converts the image to a single channel once and keeps it single channel throughout,
+    including the candidate regions unless colour candidates are requested with Barcode.doColourCandidates
+    REDUCED_GRAYSCALE combines the two
+    */
+
+    FULL_RESOLUTION(0), REDUCED_RESOLUTION(1), GRAYSCALE(2), REDUCED_GRAYSCALE(3);
+
+        private int val;
+
+        ImageLoadFlags(int val) {
+            this.val = val;
+        }
+
+        int value(){
+            return val;
+        }
+}
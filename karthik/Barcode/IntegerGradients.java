@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ *
+ * @author karthik
+ * Integer version of the gradient stage in MatrixBarcode.
+ * Scharr derivatives are computed in CV_16S and each (dx, dy) pair is mapped to the folded direction code
+ * through a lookup table instead of Core.phase and the inRange/add/setTo passes that fold the angles.
+ * Magnitude is the L1 norm |dx| + |dy| so no square roots are needed.
+ * Produces gradient_direction and gradient_magnitude in the same encoding as the float path.
+ */
+class IntegerGradients {
+
+    // ratio of the smaller to the larger of |dx|, |dy| is quantized to RATIO_BITS bits before the lookup
+    private static final int RATIO_BITS = 10;
+    private static final int RATIO_STEPS = 1 << RATIO_BITS;
+    private static final int DUMMY_ANGLE = 255;
+
+    // direction code indexed by octant * (RATIO_STEPS + 1) + ratio
+    // octants are 0: dx, dy same sign |dy| <= |dx|, 1: same sign |dy| > |dx|
+    // 2: opposite sign |dy| > |dx|, 3: opposite sign |dy| <= |dx|
+    private static final byte[] DIRECTION_LUT = new byte[4 * (RATIO_STEPS + 1)];
+
+    static {
+        for (int r = 0; r <= RATIO_STEPS; r++) {
+            double small_angle = Math.toDegrees(Math.atan(r / (1.0 * RATIO_STEPS)));
+            DIRECTION_LUT[r] = foldedCode(small_angle);
+            DIRECTION_LUT[(RATIO_STEPS + 1) + r] = foldedCode(90 - small_angle);
+            DIRECTION_LUT[2 * (RATIO_STEPS + 1) + r] = foldedCode(90 + small_angle);
+            DIRECTION_LUT[3 * (RATIO_STEPS + 1) + r] = foldedCode(180 - small_angle);
+        }
+    }
+
+    // package visible so that JavaBackend can fill dx, dy itself and read the results
+    short[] dx, dy;
+    byte[] directions, edges;
+    private int[] magnitudes;
+    private final int[] magnitude_hist = new int[256];
+    private final int[] min_max = new int[2];
+
+    private static byte foldedCode(double angle) {
+        // same folding as the float path - angles from 170-180 become 0, the result is rounded to a whole degree
+        // and 1 is added so that gradients of 0 can be told apart from pixels with no edge
+        if (angle >= 170)
+            angle = 0;
+        return (byte) ((int) Math.round(angle) + 1);
+    }
+
+    void calcGradientDirectionAndMagnitude(ImageInfo img_details) {
+        // results are stored in gradient_direction and gradient_magnitude in img_details as CV_8U Mats
+        Mat gray = img_details.getSearchArea();
+        Imgproc.Scharr(gray, img_details.scharr_x, CvType.CV_16S, 1, 0);
+        Imgproc.Scharr(gray, img_details.scharr_y, CvType.CV_16S, 0, 1);
+
+        int rows = gray.rows();
+        int cols = gray.cols();
+        int size = rows * cols;
+        allocate(size);
+
+        img_details.scharr_x.get(0, 0, dx);
+        img_details.scharr_y.get(0, 0, dy);
+        calcDirectionsAndEdges(size);
+
+        img_details.gradient_magnitude.create(rows, cols, CvType.CV_8U);
+        img_details.gradient_direction.create(rows, cols, CvType.CV_8U);
+        img_details.gradient_magnitude.put(0, 0, edges);
+        img_details.gradient_direction.put(0, 0, directions);
+    }
+
+    void calcDirectionsAndEdges(int size) {
+        // fills directions and edges from the derivatives in dx and dy
+        GradientKernels.INSTANCE.directions(dx, dy, size, DIRECTION_LUT, RATIO_BITS, magnitudes, directions, min_max);
+        int min_mag = min_max[0], max_mag = min_max[1];
+
+        // normalize magnitudes to 0-255 as NORM_MINMAX does and threshold them with Otsu's method
+        int range = Math.max(max_mag - min_mag, 1);
+        Arrays.fill(magnitude_hist, 0);
+        for (int i = 0; i < size; i++) {
+            int scaled = (int) (((long) (magnitudes[i] - min_mag) * 255 + range / 2) / range);
+            magnitudes[i] = scaled;
+            magnitude_hist[scaled]++;
+        }
+        int threshold = otsuThreshold(magnitude_hist, size);
+
+        for (int i = 0; i < size; i++) {
+            if (magnitudes[i] > threshold)
+                edges[i] = (byte) 255;
+            else {
+                edges[i] = 0;
+                directions[i] = (byte) DUMMY_ANGLE;
+            }
+        }
+    }
+
+    void allocate(int size) {
+        // buffers are reused between images of the same size e.g. video frames
+        if (dx != null && dx.length == size)
+            return;
+        dx = new short[size];
+        dy = new short[size];
+        magnitudes = new int[size];
+        directions = new byte[size];
+        edges = new byte[size];
+    }
+
+    static int otsuThreshold(int[] hist, int total) {
+        // returns the threshold that maximizes between-class variance for a 256 bin histogram
+        long sum = 0;
+        for (int i = 0; i < 256; i++)
+            sum += (long) i * hist[i];
+
+        long sum_below = 0;
+        int count_below = 0;
+        double max_variance = -1;
+        int threshold = 0;
+        for (int t = 0; t < 256; t++) {
+            count_below += hist[t];
+            if (count_below == 0)
+                continue;
+            int count_above = total - count_below;
+            if (count_above == 0)
+                break;
+            sum_below += (long) t * hist[t];
+            double mean_below = sum_below / (1.0 * count_below);
+            double mean_above = (sum - sum_below) / (1.0 * count_above);
+            double variance = (double) count_below * count_above * (mean_below - mean_above) * (mean_below - mean_above);
+            if (variance > max_variance) {
+                max_variance = variance;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+}
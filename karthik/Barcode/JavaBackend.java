@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Pure Java implementation of the per-pixel stages working on byte[], short[] and int[] buffers.
+ * The only OpenCV calls are one bulk copy in from src_grayscale and bulk copies out of the results,
+ * so the whole hot path runs without JNI calls per tile or per bin.
+ * The Scharr and direction loops are in GradientKernels, which uses the jdk.incubator.vector API when the JVM has it.
+ */
+class JavaBackend implements LocalizerBackend {
+
+    private static final int DUMMY_ANGLE = 255;
+
+    private final IntegerGradients gradients = new IntegerGradients();
+
+    private byte[] gray;
+    private int rows, cols;
+
+    private final int[] tile_hist = new int[ImageInfo.bins];
+    private byte[] probabilities;
+
+    public void calcGradients(ImageInfo img_details, DebugSink debug, String name) {
+        // only the search box is processed so rows and cols are its size
+        Mat search_area = img_details.getSearchArea();
+        rows = search_area.rows();
+        cols = search_area.cols();
+        int size = rows * cols;
+        if (gray == null || gray.length != size)
+            gray = new byte[size];
+        gradients.allocate(size);
+
+        search_area.get(0, 0, gray);
+        scharr(gray, rows, cols, gradients.dx, gradients.dy);
+        gradients.calcDirectionsAndEdges(size);
+
+        // copy results back to the Mats so that debug output and later stages can still use them
+        img_details.gradient_magnitude.create(rows, cols, CvType.CV_8U);
+        img_details.gradient_direction.create(rows, cols, CvType.CV_8U);
+        img_details.gradient_magnitude.put(0, 0, gradients.edges);
+        img_details.gradient_direction.put(0, 0, gradients.directions);
+    }
+
+    static void scharr(byte[] src, int rows, int cols, short[] dx, short[] dy) {
+        // 3x3 Scharr derivatives with the BORDER_REFLECT_101 handling Imgproc.Scharr uses by default
+        for (int y = 0; y < rows; y++) {
+            int up = reflect(y - 1, rows) * cols;
+            int mid = y * cols;
+            int down = reflect(y + 1, rows) * cols;
+
+            GradientKernels.INSTANCE.scharrRow(src, up, mid, down, cols, dx, dy);
+            scharrAt(src, cols, up, mid, down, 0, dx, dy);
+            if (cols > 1)
+                scharrAt(src, cols, up, mid, down, cols - 1, dx, dy);
+        }
+    }
+
+    private static void scharrAt(byte[] src, int cols, int up, int mid, int down, int x, short[] dx, short[] dy) {
+        // border columns of scharr()
+        int l = reflect(x - 1, cols), r = reflect(x + 1, cols);
+        int tl = src[up + l] & 0xff, tc = src[up + x] & 0xff, tr = src[up + r] & 0xff;
+        int ml = src[mid + l] & 0xff, mr = src[mid + r] & 0xff;
+        int bl = src[down + l] & 0xff, bc = src[down + x] & 0xff, br = src[down + r] & 0xff;
+        dx[mid + x] = (short) (3 * (tr - tl + br - bl) + 10 * (mr - ml));
+        dy[mid + x] = (short) (3 * (bl - tl + br - tr) + 10 * (bc - tc));
+    }
+
+    private static int reflect(int idx, int len) {
+        if (len == 1)
+            return 0;
+        if (idx < 0)
+            return -idx;
+        if (idx >= len)
+            return 2 * len - idx - 2;
+        return idx;
+    }
+
+    public void calcTileHistograms(ImageInfo img_details, int tileSize) {
+        img_details.tileHistograms.build(gradients.directions, gradients.edges, img_details.getSearchMaskPixels(),
+            img_details.getSearchBox(), img_details.src_grayscale.rows(), img_details.src_grayscale.cols(), tileSize);
+    }
+
+    public Mat calcProbabilityTilings(ImageInfo img_details, SearchParameters searchParams, int rows, int cols, int tileSize) {
+        // same tile scoring as OpenCVBackend but on Java arrays
+        TileHistogramPyramid pyramid = img_details.tileHistograms;
+        int level = pyramid.getLevel(tileSize);
+        int probMatTileSize = (int) (tileSize * (searchParams.PROB_MAT_TILE_SIZE / (1.0 * searchParams.tileSize)));
+        int threshold_min_gradient_edges = (int) (tileSize * tileSize * searchParams.THRESHOLD_MIN_GRADIENT_EDGES_MULTIPLIER);
+        int probMatRows = img_details.probMatRows;
+        int probMatCols = img_details.probMatCols;
+
+        if (probabilities == null || probabilities.length != probMatRows * probMatCols)
+            probabilities = new byte[probMatRows * probMatCols];
+        else
+            Arrays.fill(probabilities, (byte) 0);
+
+        for (int i = 0, tile_row = 0, row_offset = 0; i < rows; i += tileSize, tile_row++, row_offset += probMatTileSize) {
+            int prob_mat_bottom_row = Math.min(row_offset + probMatTileSize, probMatRows);
+
+            for (int j = 0, tile_col = 0, col_offset = 0; j < cols; j += tileSize, tile_col++, col_offset += probMatTileSize) {
+                int prob_mat_right_col = Math.min(col_offset + probMatTileSize, probMatCols);
+
+                if (pyramid.getTile(level, tile_row, tile_col, tile_hist) < threshold_min_gradient_edges)
+                    continue;
+
+                int max_angle_idx = 0, second_highest_angle_index = -1;
+                for (int r = 1; r < ImageInfo.bins; r++)
+                    if (tile_hist[r] > tile_hist[max_angle_idx])
+                        max_angle_idx = r;
+                for (int r = 0; r < ImageInfo.bins; r++)
+                    if (r != max_angle_idx && (second_highest_angle_index < 0 || tile_hist[r] > tile_hist[second_highest_angle_index]))
+                        second_highest_angle_index = r;
+
+                int max_angle_count = tile_hist[max_angle_idx];
+                int second_highest_angle_count = tile_hist[second_highest_angle_index];
+
+                // formula below is modified from Szentandrasi, Herout, Dubska paper pp. 4
+                double prob = 0;
+                if (Math.abs(max_angle_idx - second_highest_angle_index) != 1 && max_angle_count > 0)
+                    prob = 2.0 * Math.min(max_angle_count, second_highest_angle_count) / (max_angle_count + second_highest_angle_count);
+
+                byte value = (byte) (int) (prob * 255);
+                for (int r = row_offset; r < prob_mat_bottom_row; r++)
+                    Arrays.fill(probabilities, r * probMatCols + col_offset, r * probMatCols + prob_mat_right_col, value);
+            }
+        }
+
+        img_details.probabilities.put(0, 0, probabilities);
+        return img_details.probabilities;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Live capture pipeline where the newest frame always wins.
+ * A capture thread keeps reading frames into a single slot and the localizer thread always takes whatever
+ * is in the slot, so a frame that is replaced before the localizer gets to it is dropped instead of queued.
+ * Latency from capture to result stays bounded by the time to process one frame even when the localizer
+ * is slower than the camera.
+ * setMaxFrameAge puts a hard limit on it. A frame older than the limit when the localizer takes it is skipped.
+ * The search on a frame stops once the frame reaches that age, and the listener gets the candidates found so far.
+ */
+public class LiveFramePipeline {
+
+    public interface FrameSource {
+
+        // reads the next frame into frame and returns false at the end of the stream
+        // frame is reused between calls so the source should write into it rather than replace it
+        boolean read(Mat frame);
+    }
+
+    public interface ResultListener {
+
+        // called on the localizer thread for every processed frame
+        // frame and the crops of the candidates are only valid until this call returns
+        void onResult(Mat frame, long frameNumber, List<CandidateResult> candidates, long latencyNanos);
+    }
+
+    private final FrameSource source;
+    private final ResultListener listener;
+    private final TryHarderFlags flag;
+    private Barcode barcode;
+
+    private final Object lock = new Object();
+    private Frame latest;  // newest frame the localizer has not taken yet
+    private final ArrayDeque<Frame> free = new ArrayDeque<Frame>();
+    private volatile boolean running;
+    private volatile long maxFrameAge = 0;  // nanoseconds from capture, 0 for no limit
+    private Thread captureThread, localizerThread;
+
+    // statistics - written under lock or by the localizer thread only
+    private long captured, processed, dropped, stale, cutShort;
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long lastLatency, maxLatency, totalLatency;
+
+    public LiveFramePipeline(FrameSource source, TryHarderFlags flag, ResultListener listener) {
+        this.source = source;
+        this.flag = flag;
+        this.listener = listener;
+        // one frame being captured, one in the slot and one being localized
+        for (int i = 0; i < 3; i++)
+            free.push(new Frame());
+    }
+
+    public void setMaxFrameAge(long maxAge, TimeUnit unit) {
+        // latency budget per frame counted from its capture, 0 for none
+        maxFrameAge = unit.toNanos(maxAge);
+    }
+
+    public void start() {
+        running = true;
+        captureThread = new Thread(new Runnable() {
+            public void run() {
+                captureFrames();
+            }
+        }, "barcode-live-capture");
+        localizerThread = new Thread(new Runnable() {
+            public void run() {
+                localizeFrames();
+            }
+        }, "barcode-live-localizer");
+        captureThread.start();
+        localizerThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        // stops both threads and waits for them - the frame being localized is finished first
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        captureThread.join();
+        localizerThread.join();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void captureFrames() {
+        while (running) {
+            Frame frame;
+            synchronized (lock) {
+                frame = free.poll();
+            }
+            if (frame == null)
+                frame = new Frame();
+
+            if (!source.read(frame.image) || frame.image.empty()) {
+                // end of stream - let the localizer finish the frame in the slot and stop
+                synchronized (lock) {
+                    running = false;
+                    lock.notifyAll();
+                }
+                break;
+            }
+            frame.capture_nanos = System.nanoTime();
+
+            synchronized (lock) {
+                frame.number = ++captured;
+                if (latest != null) {
+                    // the localizer did not get to the previous frame in time so it is dropped
+                    dropped++;
+                    free.push(latest);
+                }
+                latest = frame;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void localizeFrames() {
+        while (true) {
+            Frame frame;
+            synchronized (lock) {
+                while (latest == null && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (latest == null)
+                    return;
+                frame = latest;
+                latest = null;
+            }
+
+            try {
+                long max_age = maxFrameAge;
+                long deadline = (max_age > 0) ? frame.capture_nanos + max_age : 0;
+                if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                    // already over budget - localizing it would only add to the latency of the next frame
+                    synchronized (lock) {
+                        stale++;
+                    }
+                    continue;
+                }
+                List<CandidateResult> candidates = localize(frame.image, frame.number, deadline);
+                if (barcode.isPartial()) {
+                    synchronized (lock) {
+                        cutShort++;
+                    }
+                }
+                long latency = System.nanoTime() - frame.capture_nanos;
+                listener.onResult(frame.image, frame.number, candidates, latency);
+                recordLatency(latency);
+            } catch (IOException ioe) {
+                errors.incrementAndGet();
+            } catch (RuntimeException re) {
+                // a bad frame or a failing listener must not stop the localizer thread
+                errors.incrementAndGet();
+            } finally {
+                synchronized (lock) {
+                    free.push(frame);
+                }
+            }
+        }
+    }
+
+    private List<CandidateResult> localize(Mat image, long frameNumber, long deadline) throws IOException {
+        // reuses the same Barcode object while the frame size stays the same
+        String name = "Frame_" + frameNumber;
+        if (barcode == null || !Barcode.updateImage(barcode, image, name))
+            barcode = new MatrixBarcode(name, image, flag);
+        barcode.setDeadline(deadline);
+        return barcode.locateBarcode();
+    }
+
+    private void recordLatency(long latency) {
+        lastLatency = latency;
+        if (latency > maxLatency)
+            maxLatency = latency;
+        totalLatency += latency;
+        synchronized (lock) {
+            processed++;
+        }
+    }
+
+    public long getCapturedCount() {
+        synchronized (lock) {
+            return captured;
+        }
+    }
+
+    public long getProcessedCount() {
+        synchronized (lock) {
+            return processed;
+        }
+    }
+
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    public long getStaleCount() {
+        // frames skipped because they were older than the maximum frame age
+        synchronized (lock) {
+            return stale;
+        }
+    }
+
+    public long getCutShortCount() {
+        // frames whose search stopped at the maximum frame age
+        synchronized (lock) {
+            return cutShort;
+        }
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public double getLastLatencyMillis() {
+        return lastLatency / 1e6;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatency / 1e6;
+    }
+
+    public double getMeanLatencyMillis() {
+        long count = getProcessedCount();
+        return (count == 0) ? 0 : totalLatency / (1e6 * count);
+    }
+
+    public String getStatistics() {
+        return "captured " + getCapturedCount() + " processed " + getProcessedCount() + " dropped " + getDroppedCount()
+            + " stale " + getStaleCount() + " cut short " + getCutShortCount()
+            + " latency ms last " + Math.round(getLastLatencyMillis()) + " mean " + Math.round(getMeanLatencyMillis())
+            + " max " + Math.round(getMaxLatencyMillis());
+    }
+
+    private static class Frame {
+
+        final Mat image = new Mat();
+        long capture_nanos;
+        long number;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Per-pixel stages of the matrix barcode search.
+ * OpenCVBackend is the reference implementation, JavaBackend does the same work on Java arrays.
+ * An instance keeps its working buffers between calls so each Barcode object needs its own.
+ */
+interface LocalizerBackend {
+
+    // calculates gradient_direction and gradient_magnitude in img_details from src_grayscale
+    // debug is null unless intermediate Mats of the image called name should be written to it
+    void calcGradients(ImageInfo img_details, DebugSink debug, String name);
+
+    // bins the gradient directions into ImageInfo.bins orientation bins and counts edges and orientations
+    // for each tile of side tileSize into img_details.tileHistograms
+    void calcTileHistograms(ImageInfo img_details, int tileSize);
+
+    // scores each tile of side tileSize and returns img_details.probabilities with the scores from 0 to 255
+    Mat calcProbabilityTilings(ImageInfo img_details, SearchParameters searchParams, int rows, int cols, int tileSize);
+}
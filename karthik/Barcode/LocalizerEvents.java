@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * @author karthik
+ * Java Flight Recorder events for the localizer, recorded with e.g.
+ *   java -XX:StartFlightRecording:filename=barcode.jfr ...
+ * One Locate event covers each locateBarcode call, a Stage event covers each stage of it and a Candidate event
+ * is emitted for each candidate found. Fields are only filled in when shouldCommit says the event is being recorded,
+ * and the JIT removes the event objects altogether while recording is off.
+ */
+final class LocalizerEvents {
+
+    static final String CATEGORY = "Barcode Localizer";
+
+    // stage names used in Stage events
+    static final String GRADIENT = "gradient";
+    static final String HISTOGRAMS = "histograms";
+    static final String TILING = "tiling";
+    static final String CONTOURS = "contours";
+    static final String NORMALIZATION = "normalization";
+    static final String CONVERSION = "conversion";
+
+    private LocalizerEvents() {
+    }
+
+    @Name("karthik.Barcode.Locate")
+    @Label("Locate Barcode")
+    @Category(CATEGORY)
+    @Description("One call to locateBarcode")
+    @StackTrace(false)
+    static class Locate extends Event {
+
+        @Label("Image")
+        String image;
+
+        @Label("Rows")
+        @Description("Rows of the image searched, after any shrinking")
+        int rows;
+
+        @Label("Columns")
+        int cols;
+
+        @Label("Original Rows")
+        int originalRows;
+
+        @Label("Original Columns")
+        int originalCols;
+
+        @Label("Search Profile")
+        String profile;
+
+        @Label("Scale Mask")
+        int scaleMask;
+
+        @Label("Candidates")
+        int candidates;
+
+        @Label("Partial")
+        @Description("Search stopped early at its deadline or on cancellation")
+        boolean partial;
+
+        void set(Barcode barcode, int candidate_count) {
+            ImageInfo img_details = barcode.img_details;
+            image = barcode.name;
+            rows = barcode.rows;
+            cols = barcode.cols;
+            originalRows = img_details.originalRows();
+            originalCols = img_details.originalCols();
+            profile = String.valueOf(barcode.sizeProfile);
+            scaleMask = barcode.scaleMask;
+            candidates = candidate_count;
+            partial = barcode.partial;
+        }
+    }
+
+    @Name("karthik.Barcode.Stage")
+    @Label("Localizer Stage")
+    @Category(CATEGORY)
+    @Description("One stage of locateBarcode or of making a candidate crop")
+    @StackTrace(false)
+    static class Stage extends Event {
+
+        @Label("Stage")
+        String stage;
+
+        @Label("Image")
+        String image;
+
+        @Label("Tile Size")
+        @Description("Tile size in pixels for histograms, tiling and contours, 0 for other stages")
+        int tileSize;
+
+        @Label("Tiles")
+        int tiles;
+
+        @Label("Regions")
+        @Description("Candidate regions found by the contours stage")
+        int regions;
+
+        @Label("Output Size")
+        @DataAmount(DataAmount.BYTES)
+        long outputBytes;
+
+        Stage(String stage) {
+            this.stage = stage;
+        }
+
+        void setTiles(String image_name, int rows, int cols, int tile_size) {
+            image = image_name;
+            tileSize = tile_size;
+            tiles = ((rows + tile_size - 1) / tile_size) * ((cols + tile_size - 1) / tile_size);
+        }
+    }
+
+    @Name("karthik.Barcode.Candidate")
+    @Label("Barcode Candidate")
+    @Category(CATEGORY)
+    @Description("A candidate region returned by locateBarcode, in original image coordinates")
+    @StackTrace(false)
+    static class Candidate extends Event {
+
+        @Label("Image")
+        String image;
+
+        @Label("Centre X")
+        double centreX;
+
+        @Label("Centre Y")
+        double centreY;
+
+        @Label("Width")
+        double width;
+
+        @Label("Height")
+        double height;
+
+        @Label("Angle")
+        double angle;
+
+        @Label("Score")
+        double score;
+
+        @Label("Tile Size")
+        int tileSize;
+
+        void set(String image_name, CandidateResult candidate, int tile_size) {
+            image = image_name;
+            centreX = candidate.region.center.x;
+            centreY = candidate.region.center.y;
+            width = candidate.region.size.width;
+            height = candidate.region.size.height;
+            angle = candidate.region.angle;
+            score = candidate.score;
+            tileSize = tile_size;
+        }
+    }
+}
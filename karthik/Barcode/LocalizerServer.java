@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ *
+ * @author karthik
+ * Local HTTP server that keeps OpenCV loaded and MatrixBarcode workspaces warm between requests.
+ * Endpoints are
+ *   POST /locate   - body is an encoded image (PNG, JPEG etc.). Optional query parameters are
+ *                    size=VERY_SMALL_MATRIX, crops=true to return PNG crops as base64
+ *                    and gray=true to decode and search a grayscale image
+ *   GET  /health   - returns {"status":"ok"} while the server is accepting work
+ *   GET  /metrics  - request, batch and workspace counters as JSON
+ * Requests are collected for up to batchWindowMillis and requests with the same image size and search flags
+ * are run back to back on one workspace, which is updated with Barcode.updateImage instead of being rebuilt.
+ * The server binds to the loopback address only and needs no network access.
+ */
+public class LocalizerServer {
+
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+    private static final long REQUEST_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_WORKSPACE_KEYS = 16;
+
+    private final HttpServer server;
+    private final ExecutorService handlerPool;
+    private final ExecutorService workers;
+    private final Semaphore idleWorkers;
+    private final Semaphore admitted;  // requests between admission and their response, taken before the body is read
+    private final Semaphore decoders;  // requests reading and decoding their body at once
+    private final BlockingQueue<LocateRequest> requests;
+    private final Thread batcher;
+    private final int threads, maxBatchSize;
+    private final long batchWindowMillis;
+    private volatile boolean running;
+
+    // idle workspaces for each image size and flag combination - least recently used keys are dropped
+    private final Map<String, ArrayDeque<MatrixBarcode>> workspaces = new LinkedHashMap<String, ArrayDeque<MatrixBarcode>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<MatrixBarcode>> eldest) {
+            return size() > MAX_WORKSPACE_KEYS;
+        }
+    };
+
+    // metrics
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedRequestCount = new AtomicLong();
+    private final AtomicLong workspacesCreated = new AtomicLong();
+    private final AtomicLong workspaceReuses = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong localizeNanos = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    public LocalizerServer(int port) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors(), 64, 8, 2);
+    }
+
+    public LocalizerServer(int port, int threads, int queueCapacity, int maxBatchSize, long batchWindowMillis) throws IOException {
+        this.threads = threads;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindowMillis = batchWindowMillis;
+        requests = new ArrayBlockingQueue<LocateRequest>(queueCapacity);
+        workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("barcode-server-worker"));
+        idleWorkers = new Semaphore(threads);
+        // every admitted request fits in the queue or on a worker, so one that is admitted is never turned away
+        // after its body has been decoded, and only as many bodies as there are workers are held undecoded at once
+        admitted = new Semaphore(queueCapacity + threads);
+        decoders = new Semaphore(threads);
+        handlerPool = Executors.newCachedThreadPool(new DaemonThreadFactory("barcode-server-http"));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/locate", new LocateHandler());
+        server.createContext("/health", new HealthHandler());
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(handlerPool);
+
+        batcher = new Thread(new Runnable() {
+            public void run() {
+                batchRequests();
+            }
+        }, "barcode-server-batcher");
+        batcher.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        batcher.start();
+        server.start();
+    }
+
+    public void stop(int delaySeconds) {
+        // stops accepting requests, waits up to delaySeconds for open exchanges and then stops the workers
+        running = false;
+        server.stop(delaySeconds);
+        batcher.interrupt();
+        workers.shutdown();
+        handlerPool.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public static void main(String[] args) throws IOException {
+        // runs the server as a local sidecar - the only argument is the port, default 8089
+        NativeLoader.load();
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8089;
+        LocalizerServer localizerServer = new LocalizerServer(port);
+        localizerServer.start();
+        System.out.println("Barcode localizer listening on http://localhost:" + localizerServer.getPort());
+    }
+
+    private void batchRequests() {
+        // collects requests for up to batchWindowMillis or maxBatchSize requests, groups them by workspace key
+        // and hands each group to a worker. Waits for an idle worker before dispatching so that the request
+        // queue fills up and new requests are rejected when the workers cannot keep up
+        List<LocateRequest> batch = new ArrayList<LocateRequest>();
+        while (running) {
+            try {
+                LocateRequest first = requests.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.clear();
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+                while (batch.size() < maxBatchSize) {
+                    LocateRequest next = requests.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                Map<String, List<LocateRequest>> groups = new HashMap<String, List<LocateRequest>>();
+                for (LocateRequest request : batch) {
+                    List<LocateRequest> group = groups.get(request.key);
+                    if (group == null) {
+                        group = new ArrayList<LocateRequest>();
+                        groups.put(request.key, group);
+                    }
+                    group.add(request);
+                }
+                for (final List<LocateRequest> group : groups.values()) {
+                    idleWorkers.acquire();
+                    batchCount.incrementAndGet();
+                    batchedRequestCount.addAndGet(group.size());
+                    workers.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                processGroup(group);
+                            } finally {
+                                idleWorkers.release();
+                            }
+                        }
+                    });
+                }
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    private void processGroup(List<LocateRequest> group) {
+        // runs a group of requests with the same key on one workspace
+        String key = group.get(0).key;
+        MatrixBarcode workspace = takeWorkspace(key);
+
+        for (LocateRequest request : group) {
+            long start = System.nanoTime();
+            queueNanos.addAndGet(start - request.queued_nanos);
+            try {
+                if (workspace == null) {
+                    workspace = new MatrixBarcode("request", request.image, request.flag);
+                    workspacesCreated.incrementAndGet();
+                } else {
+                    Barcode.updateImage(workspace, request.image);
+                    workspaceReuses.incrementAndGet();
+                }
+                workspace.doPostProcessResizeBarcode(request.crops);
+                workspace.doLocateOnly(!request.crops);
+                List<CandidateResult> candidates = workspace.locateBarcode();
+                long localized = System.nanoTime();
+                localizeNanos.addAndGet(localized - start);
+                // the candidate list belongs to the workspace so the response is built before it is reused
+                request.complete(200, toJson(request, candidates, group.size(), start, localized));
+            } catch (Exception e) {
+                // the workspace may be in an inconsistent state so it is not reused
+                workspace = null;
+                request.complete(500, "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}");
+            }
+        }
+        if (workspace != null)
+            returnWorkspace(key, workspace);
+    }
+
+    private MatrixBarcode takeWorkspace(String key) {
+        synchronized (workspaces) {
+            ArrayDeque<MatrixBarcode> idle = workspaces.get(key);
+            return (idle == null) ? null : idle.poll();
+        }
+    }
+
+    private void returnWorkspace(String key, MatrixBarcode workspace) {
+        synchronized (workspaces) {
+            ArrayDeque<MatrixBarcode> idle = workspaces.get(key);
+            if (idle == null) {
+                idle = new ArrayDeque<MatrixBarcode>();
+                workspaces.put(key, idle);
+            }
+            if (idle.size() < threads)
+                idle.push(workspace);
+        }
+    }
+
+    private String toJson(LocateRequest request, List<CandidateResult> candidates, int batch_size, long start, long localized)
+        throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"rows\":").append(request.image.rows()).append(",\"cols\":").append(request.image.cols());
+        json.append(",\"candidates\":[");
+        for (int i = 0; i < candidates.size(); i++) {
+            CandidateResult candidate = candidates.get(i);
+            if (i > 0)
+                json.append(',');
+            json.append("{\"corners\":[");
+            for (int j = 0; j < candidate.ROI_coords.length; j++) {
+                Point p = candidate.ROI_coords[j];
+                if (j > 0)
+                    json.append(',');
+                json.append("[").append(round(p.x)).append(',').append(round(p.y)).append(']');
+            }
+            json.append(']');
+            if (request.crops && candidate.getROI() != null) {
+                MatOfByte png = new MatOfByte();
+                if (Imgcodecs.imencode(".png", candidate.getROI(), png))
+                    json.append(",\"crop\":\"").append(Base64.getEncoder().encodeToString(png.toArray())).append('"');
+            }
+            json.append('}');
+        }
+        long end = System.nanoTime();
+        json.append("],\"batch_size\":").append(batch_size);
+        json.append(",\"timings_ms\":{\"decode\":").append(millis(request.decode_nanos));
+        json.append(",\"queue\":").append(millis(start - request.queued_nanos));
+        json.append(",\"localize\":").append(millis(localized - start));
+        json.append(",\"encode\":").append(millis(end - localized));
+        json.append("}}");
+        return json.toString();
+    }
+
+    private class LocateHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            long received = System.nanoTime();
+            requestCount.incrementAndGet();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "{\"error\":\"POST an encoded image to /locate\"}");
+                return;
+            }
+
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            TryHarderFlags flag;
+            try {
+                flag = params.containsKey("size") ? TryHarderFlags.valueOf(params.get("size")) : TryHarderFlags.VERY_SMALL_MATRIX;
+            } catch (IllegalArgumentException iae) {
+                send(exchange, 400, "{\"error\":" + quote("unknown size " + params.get("size")) + "}");
+                return;
+            }
+            // the other profiles have no usable tile size yet so they are turned away rather than failing in a worker
+            if (flag != TryHarderFlags.VERY_SMALL_MATRIX) {
+                send(exchange, 400, "{\"error\":\"size " + flag + " is not supported\"}");
+                return;
+            }
+            boolean gray = "true".equals(params.get("gray"));
+
+            // admission comes before the body is read so an overloaded server does not buffer and decode
+            // images it has no room for
+            if (!running || !admitted.tryAcquire()) {
+                rejectedCount.incrementAndGet();
+                send(exchange, 503, "{\"error\":\"localizer queue is full\"}");
+                return;
+            }
+            try {
+                locate(exchange, params, flag, gray, received);
+            } finally {
+                admitted.release();
+            }
+        }
+
+        private void locate(HttpExchange exchange, Map<String, String> params, TryHarderFlags flag, boolean gray, long received)
+            throws IOException {
+            Mat image;
+            try {
+                decoders.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "{\"error\":\"server is stopping\"}");
+                return;
+            }
+            try {
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    send(exchange, 413, "{\"error\":\"image is larger than " + MAX_BODY_BYTES + " bytes\"}");
+                    return;
+                }
+                image = Imgcodecs.imdecode(new MatOfByte(body), gray ? Imgcodecs.IMREAD_GRAYSCALE : Imgcodecs.IMREAD_COLOR);
+            } finally {
+                decoders.release();
+            }
+            if (image == null || image.empty()) {
+                send(exchange, 400, "{\"error\":\"body is not a readable image\"}");
+                return;
+            }
+
+            LocateRequest request = new LocateRequest(image, flag, "true".equals(params.get("crops")));
+            request.decode_nanos = System.nanoTime() - received;
+            decodeNanos.addAndGet(request.decode_nanos);
+            request.queued_nanos = System.nanoTime();
+            if (!running || !requests.offer(request)) {
+                rejectedCount.incrementAndGet();
+                send(exchange, 503, "{\"error\":\"localizer queue is full\"}");
+                return;
+            }
+
+            try {
+                if (!request.done.await(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                    request.complete(504, "{\"error\":\"localization timed out\"}");
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                request.complete(503, "{\"error\":\"server is stopping\"}");
+            }
+            if (request.status == 200)
+                completedCount.incrementAndGet();
+            else
+                errorCount.incrementAndGet();
+            totalNanos.addAndGet(System.nanoTime() - received);
+            send(exchange, request.status, request.response);
+        }
+    }
+
+    private class HealthHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            if (running)
+                send(exchange, 200, "{\"status\":\"ok\"}");
+            else
+                send(exchange, 503, "{\"status\":\"stopping\"}");
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            long completed = completedCount.get();
+            long batches = batchCount.get();
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"requests\":").append(requestCount.get());
+            json.append(",\"completed\":").append(completed);
+            json.append(",\"errors\":").append(errorCount.get());
+            json.append(",\"rejected\":").append(rejectedCount.get());
+            json.append(",\"queue_depth\":").append(requests.size());
+            json.append(",\"busy_workers\":").append(threads - idleWorkers.availablePermits());
+            json.append(",\"batches\":").append(batches);
+            json.append(",\"mean_batch_size\":").append(round(batchedRequestCount.get() / (1.0 * Math.max(batches, 1))));
+            json.append(",\"workspaces_created\":").append(workspacesCreated.get());
+            json.append(",\"workspace_reuses\":").append(workspaceReuses.get());
+            json.append(",\"mean_ms\":{\"decode\":").append(meanMillis(decodeNanos, completed));
+            json.append(",\"queue\":").append(meanMillis(queueNanos, completed));
+            json.append(",\"localize\":").append(meanMillis(localizeNanos, completed));
+            json.append(",\"total\":").append(meanMillis(totalNanos, completed));
+            json.append("}}");
+            send(exchange, 200, json.toString());
+        }
+    }
+
+    private static class LocateRequest {
+
+        final Mat image;
+        final TryHarderFlags flag;
+        final boolean crops;
+        final String key;  // requests with the same key can share a workspace
+        final CountDownLatch done = new CountDownLatch(1);
+        long decode_nanos, queued_nanos;
+        volatile int status;
+        volatile String response;
+
+        LocateRequest(Mat image, TryHarderFlags flag, boolean crops) {
+            this.image = image;
+            this.flag = flag;
+            this.crops = crops;
+            key = image.rows() + "x" + image.cols() + "x" + image.channels() + ":" + flag.name();
+        }
+
+        synchronized void complete(int status, String response) {
+            // only the first result is kept, so a late worker result cannot overwrite a timeout
+            if (done.getCount() == 0)
+                return;
+            this.status = status;
+            this.response = response;
+            done.countDown();
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicLong threadNumber = new AtomicLong();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        // returns null if the body is larger than MAX_BODY_BYTES
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            if (body.size() + n > MAX_BODY_BYTES)
+                return null;
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0)
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            else if (pair.length() > 0)
+                params.put(pair, "true");
+        }
+        return params;
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static double millis(long nanos) {
+        return round(nanos / 1e6);
+    }
+
+    private static double meanMillis(AtomicLong nanos, long count) {
+        return millis(nanos.get() / Math.max(count, 1));
+    }
+}
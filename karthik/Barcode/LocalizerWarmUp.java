@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ *
+ * @author karthik
+ * Runs the whole localizer on synthetic images so that the JIT has compiled the hot paths and OpenCV has done its
+ * lazy initialization before the first real image arrives. Short lived batch jobs and newly started workers
+ * call warmUp once at startup with the image sizes they expect.
+ * Each synthetic image has a matrix code and a linear code on a noisy background. It is searched from a Mat
+ * and from a PNG file, with each load flag and backend, and every candidate is cropped and converted.
+ *
+ * main also generates a class data sharing archive (JDK 13 or later) so classes do not have to be loaded
+ * and verified again on every start:
+ *   java -XX:ArchiveClassesAtExit=barcode.jsa -cp [classpath] karthik.Barcode.LocalizerWarmUp [iterations] [rowsxcols ...]
+ * and later runs use it with
+ *   java -XX:SharedArchiveFile=barcode.jsa -cp [same classpath] ...
+ */
+public class LocalizerWarmUp {
+
+    public static final Size[] DEFAULT_SIZES = {new Size(640, 480), new Size(1920, 1080)};
+
+    private LocalizerWarmUp() {
+    }
+
+    public static long warmUp() throws IOException {
+        return warmUp(TryHarderFlags.VERY_SMALL_MATRIX, 3, DEFAULT_SIZES);
+    }
+
+    public static long warmUp(TryHarderFlags flag, int iterations, Size... sizes) throws IOException {
+        // returns the time taken in nanoseconds
+        NativeLoader.load();
+        long start = System.nanoTime();
+        File png = File.createTempFile("barcode-warmup-", ".png");
+        try {
+            for (Size size : sizes) {
+                Mat image = syntheticImage((int) size.height, (int) size.width, 42);
+                Imgcodecs.imwrite(png.getPath(), image);
+                for (int i = 0; i < iterations; i++) {
+                    boolean alternate = (i % 2) == 1;
+                    MatrixBarcode barcode = new MatrixBarcode("warmup", image, flag);
+                    barcode.doConnectedComponents(alternate);
+                    cropAll(barcode.locateBarcode());
+
+                    // same image again through the reused workspace and the other backends
+                    if (Barcode.updateImage(barcode, image, "warmup")) {
+                        barcode.doIntegerGradients(!alternate);
+                        barcode.doJavaBackend(alternate);
+                        cropAll(barcode.locateBarcode());
+                    }
+
+                    for (ImageLoadFlags loadFlag : ImageLoadFlags.values())
+                        cropAll(new MatrixBarcode(png.getPath(), false, flag, loadFlag).locateBarcode());
+                }
+            }
+        } finally {
+            png.delete();
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static Mat syntheticImage(int rows, int cols, long seed) {
+        // noisy grey background with a random 12x12 module matrix code and a linear code drawn on it
+        Random random = new Random(seed);
+        Mat image = new Mat(rows, cols, CvType.CV_8UC3);
+        Core.randu(image, 90, 160);
+        Scalar black = new Scalar(0, 0, 0), white = new Scalar(255, 255, 255);
+
+        int side = Math.min(rows, cols) / 4;
+        int module = Math.max(side / 12, 1);
+        Rect code_box = matrixCodeBox(rows, cols);
+        Point origin = new Point(code_box.x + module, code_box.y + module);
+        Imgproc.rectangle(image, new Point(code_box.x, code_box.y),
+            new Point(code_box.x + code_box.width, code_box.y + code_box.height), white, -1);
+        for (int r = 0; r < 12; r++)
+            for (int c = 0; c < 12; c++)
+                if (r == 11 || c == 0 || random.nextBoolean())
+                    Imgproc.rectangle(image, new Point(origin.x + c * module, origin.y + r * module),
+                        new Point(origin.x + (c + 1) * module - 1, origin.y + (r + 1) * module - 1), black, -1);
+
+        int x = cols / 2, top = rows / 3, bottom = top + side;
+        int bar_width = Math.max(cols / 400, 1);
+        Imgproc.rectangle(image, new Point(x - 10 * bar_width, top - 4 * bar_width),
+            new Point(x + 100 * bar_width, bottom + 4 * bar_width), white, -1);
+        while (x < cols / 2 + 90 * bar_width) {
+            int width = (1 + random.nextInt(3)) * bar_width;
+            Imgproc.rectangle(image, new Point(x, top), new Point(x + width - 1, bottom), black, -1);
+            x += width + (1 + random.nextInt(3)) * bar_width;
+        }
+        return image;
+    }
+
+    public static Rect matrixCodeBox(int rows, int cols) {
+        // area of the matrix code in syntheticImage including a one module quiet zone
+        int module = Math.max(Math.min(rows, cols) / 4 / 12, 1);
+        return new Rect(cols / 8 - module, rows / 4 - module, 14 * module, 14 * module);
+    }
+
+    private static void cropAll(List<CandidateResult> candidates) throws IOException {
+        for (CandidateResult candidate : candidates)
+            candidate.getCandidate();
+    }
+
+    public static void main(String[] args) throws IOException {
+        // arguments are the number of iterations then image sizes as rowsxcols e.g. 3 480x640 1080x1920
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        List<Size> sizes = new ArrayList<Size>();
+        for (int i = 1; i < args.length; i++) {
+            String[] dims = args[i].toLowerCase().split("x");
+            sizes.add(new Size(Integer.parseInt(dims[1]), Integer.parseInt(dims[0])));
+        }
+        Size[] warmup_sizes = sizes.isEmpty() ? DEFAULT_SIZES : sizes.toArray(new Size[sizes.size()]);
+
+        long nanos = warmUp(TryHarderFlags.VERY_SMALL_MATRIX, iterations, warmup_sizes);
+        System.out.println("Warm up took " + Math.round(nanos / 1e6) + " ms, OpenCV loaded from " + NativeLoader.getSource());
+    }
+}
@@ -20,7 +20,6 @@ import java.io.IOException;
 import java.util.*;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.utils.Converters;
 
 /**
  *
@@ -28,35 +27,30 @@ import org.opencv.utils.Converters;
  */
 public class MatrixBarcode extends Barcode {
 
-    // used in histogram calculation
-    private static final int DUMMY_ANGLE = 255;    
-    private static final Scalar ZERO_SCALAR = new Scalar(0);
-
-    private static Mat hist = new MatOfInt(ImageInfo.bins, 1);
-    private static Mat histIdx = new Mat();
-    private static Mat mask = new Mat(); // empty Mat to use as mask for histogram calculation
-    private static Mat angles;
+    private final Mat hierarchy = new Mat(); // empty Mat required as parameter in contour finding - per instance since findContours writes it
     
-    private static final Mat hierarchy = new Mat(); // empty Mat required as parameter in contour finding. Not used anywhere else.
-    private static final Map<Integer, Scalar> scalarDict = new HashMap<Integer, Scalar>();
+    private boolean integerGradients = false;
+    private LocalizerBackend backend = new OpenCVBackend(false);  // per-pixel stages of the search
     
-    static{
-        // create a hashmap with Scalar objects used during histogram calculation
-        // done so that we can reuse these objects instead of creating and destroying them
-        for(int r = 1; r <= 181; r += ImageInfo.BIN_WIDTH)
-            scalarDict.put(r, new Scalar(r));
-        
-        // add objects used when trimming angles to 0-360 range
-        scalarDict.put(170, new Scalar(170));
-        scalarDict.put(180, new Scalar(180));
-        scalarDict.put(-180, new Scalar(-180));
-        scalarDict.put(360, new Scalar(360));
-        scalarDict.put(DUMMY_ANGLE, new Scalar(DUMMY_ANGLE));
-    }
+    // used when candidate regions are found with connected components instead of contours
+    private boolean connectedComponents = false;
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    private final Mat componentMask = new Mat();
+    
+    // area of each candidate region divided by the area of its enclosing RotatedRect, in the same order as the regions
+    private final List<Double> candidateScores = new ArrayList<Double>();
     
     public MatrixBarcode(String filename, boolean debug, TryHarderFlags flag) throws IOException{
         super(filename, flag);
-        DEBUG_IMAGES = debug;
+        setDebugImages(debug);
+        img_details.searchType = CodeType.MATRIX;
+   }
+
+    public MatrixBarcode(String filename, boolean debug, TryHarderFlags flag, ImageLoadFlags loadFlag) throws IOException{
+        super(filename, flag, loadFlag);
+        setDebugImages(debug);
         img_details.searchType = CodeType.MATRIX;
    }
 
@@ -67,227 +61,287 @@ public class MatrixBarcode extends Barcode {
         DEBUG_IMAGES = false;
     }
 
+    public MatrixBarcode(String image_name, Mat img, TryHarderFlags flag, ImageLoadFlags loadFlag) throws IOException{
+        super(img, flag, loadFlag);
+        name = image_name;
+        img_details.searchType = CodeType.MATRIX;
+        DEBUG_IMAGES = false;
+    }
+
+    public void doIntegerGradients(boolean useInteger){
+        // selects the CV_16S gradient stage with lookup table angles instead of the default float stage
+        // JavaBackend always uses integer gradients so this only affects the OpenCV backend
+        integerGradients = useInteger;
+        if (backend instanceof OpenCVBackend)
+            backend = new OpenCVBackend(useInteger);
+    }
+
+    public void doJavaBackend(boolean useJava){
+        // selects the pure Java implementation of the gradient, histogram and tiling stages
+        // instead of the OpenCV reference implementation
+        backend = useJava ? new JavaBackend() : new OpenCVBackend(integerGradients);
+    }
+
+    public void doConnectedComponents(boolean useComponents){
+        // finds candidate regions with connectedComponentsWithStats and filters them on their stats
+        // so that contours and rotated rects are only calculated for regions that are large enough
+        connectedComponents = useComponents;
+    }
+
     public List<CandidateResult> locateBarcode() throws IOException{
         
+        int previous_candidates = candidateBarcodes.size();
+        partial = false;
+        
+        Rect search_box = img_details.getSearchBox();
+        if (search_box.width == 0 || search_box.height == 0)
+            return candidateBarcodes;  // the search regions exclude the whole image
+        
+        // begun after the early return so every Locate event that is begun is also ended
+        LocalizerEvents.Locate locateEvent = new LocalizerEvents.Locate();
+        locateEvent.begin();
+        
+        beginDebugImage();
+        Mat annotated = debugImage ? img_details.src_scaled.clone() : null;  // image with candidate regions drawn on it
+        
         calcGradientDirectionAndMagnitude();
-        for(int tileSize = searchParams.tileSize; tileSize < rows && tileSize < cols; tileSize *= 4){            
+        CandidateVerifier verifier = verifyCandidates ? new CandidateVerifier(img_details) : null;
+        for(int tileSize = searchParams.tileSize, scale = 0; tileSize < rows && tileSize < cols; tileSize *= 4, scale++){            
+            if ((scaleMask & (1 << scale)) == 0)
+                continue;
+            if (shouldStop())
+                break;
             img_details.probabilities = calcProbabilityMatrix(tileSize);   // find areas with low variance in gradient direction
 
         //    connectComponents();
-            List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-            // findContours modifies source image so probabilities pass it a clone of img_details.probabilities
-            // img_details.probabilities will be used again shortly to expand the bsrcode region
-            Imgproc.findContours(img_details.probabilities.clone(),
-                contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-
-            double bounding_rect_area = 0;
-            RotatedRect minRect;
+            LocalizerEvents.Stage contourEvent = new LocalizerEvents.Stage(LocalizerEvents.CONTOURS);
+            contourEvent.begin();
+            List<RotatedRect> candidateRegions = connectedComponents ? findCandidateComponents() : findCandidateContours();
+            contourEvent.end();
+            if (contourEvent.shouldCommit()) {
+                contourEvent.setTiles(name, rows, cols, tileSize);
+                contourEvent.regions = candidateRegions.size();
+                contourEvent.commit();
+            }
             CandidateResult ROI;
-            int area_multiplier = (searchParams.RECT_HEIGHT * searchParams.RECT_WIDTH) / (searchParams.PROB_MAT_TILE_SIZE * searchParams.PROB_MAT_TILE_SIZE);
-        // pictures were downsampled during probability calc so we multiply it by the tile size to get area in the original picture
-
-            for (int i = 0; i < contours.size(); i++) {
-                double area = Imgproc.contourArea(contours.get(i));
 
-                if (area * area_multiplier < searchParams.THRESHOLD_MIN_AREA) // ignore contour if it is of too small a region
+            for (int i = 0; i < candidateRegions.size() && !shouldStop(); i++) {
+                RotatedRect minRect = candidateRegions.get(i);
+                CandidateMatrixBarcode cb = new CandidateMatrixBarcode(img_details, minRect, searchParams);
+                // skip candidates centred outside the search regions - tiles near the edge of a region
+                // can still join up with the area outside it. minRect is in probability matrix coordinates
+                // so the centre is taken from cb, which has it at src_grayscale resolution like the mask
+                if (!img_details.inSearchArea(cb.candidateRegion.center))
                     continue;
+                double verifierScore = 1;
+                if (verifier != null) {
+                    // checked on the scaled image before the region is expanded and cropped
+                    verifierScore = verifier.score(cb.candidateRegion);
+                    verifiedCount++;
+                    if (verifierScore < verifierThreshold) {
+                        rejectedCount++;
+                        if (debugImage)
+                            cb.debug_drawCandidateRegion(new Scalar(128, 128, 128), annotated);
+                        continue;
+                    }
+                }
+                if (debugImage)
+                    cb.debug_drawCandidateRegion(new Scalar(0, 255, 128), annotated);
+                // get candidate regions to be a barcode
+
+                // the crop is rotated to straighten it based on the angle of the enclosing RotatedRect
+                // when it is first requested from the CandidateResult
+                ROI = cb.locateCandidateRegion();
+                ROI.score = candidateScores.get(i);
+                ROI.profile = sizeProfile;
+                ROI.scale = scale;
+                ROI.verifierScore = verifierScore;
+                if (!locateOnly)
+                    ROI.setSource(cb, postProcessResizeBarcode);
 
-                minRect = Imgproc.minAreaRect(new MatOfPoint2f(contours.get(i).toArray()));
-                bounding_rect_area = minRect.size.width * minRect.size.height;
-                if (DEBUG_IMAGES) {
-                    System.out.println(
-                        "Area is " + area * area_multiplier + " MIN_AREA is " + searchParams.THRESHOLD_MIN_AREA);
-                    System.out.println("area ratio is " + ((area / bounding_rect_area)));
+                candidateBarcodes.add(ROI);
+                LocalizerEvents.Candidate candidateEvent = new LocalizerEvents.Candidate();
+                if (candidateEvent.shouldCommit()) {
+                    candidateEvent.set(name, ROI, tileSize);
+                    candidateEvent.commit();
                 }
 
-                if ((area / bounding_rect_area) > searchParams.THRESHOLD_AREA_RATIO) // check if contour is of a rectangular object
-                {
-                    CandidateMatrixBarcode cb = new CandidateMatrixBarcode(img_details, minRect, searchParams);
-                    if (DEBUG_IMAGES)
-                        cb.debug_drawCandidateRegion(new Scalar(0, 255, 128), img_details.src_scaled);
-                    // get candidate regions to be a barcode
+                if (debugImage)
+                    cb.debug_drawCandidateRegion(new Scalar(0, 0, 255), annotated);
+            }
+            writeDebug("candidates_" + tileSize, annotated);
+        }
+        if (verifier != null)
+            sortByVerifierScore(previous_candidates);
+        else if (partial)
+            sortByScore(previous_candidates);  // the best of what was found comes first when the search was cut short
+        if (cropExecutor != null && !locateOnly && !partial)
+            CandidateResult.cropAll(candidateBarcodes, cropExecutor, this);
+        
+        locateEvent.end();
+        if (locateEvent.shouldCommit()) {
+            locateEvent.set(this, candidateBarcodes.size() - previous_candidates);
+            locateEvent.commit();
+        }
+        return candidateBarcodes;
+    }
+
+ 
+    private void sortByScore(int from) {
+        Collections.sort(candidateBarcodes.subList(from, candidateBarcodes.size()), new Comparator<CandidateResult>() {
+            public int compare(CandidateResult a, CandidateResult b) {
+                return Double.compare(b.score, a.score);
+            }
+        });
+    }
 
-                    // rotates candidate region to straighten it based on the angle of the enclosing RotatedRect                
-                    ROI = cb.NormalizeCandidateRegion(Barcode.USE_ROTATED_RECT_ANGLE);  
-                    if(postProcessResizeBarcode)
-                        ROI.ROI = scale_candidateBarcode(ROI.ROI);               
+    private void sortByVerifierScore(int from) {
+        // orders the candidates found by this call best first - earlier calls' candidates keep their place
+        Collections.sort(candidateBarcodes.subList(from, candidateBarcodes.size()), new Comparator<CandidateResult>() {
+            public int compare(CandidateResult a, CandidateResult b) {
+                return Double.compare(b.verifierScore, a.verifierScore);
+            }
+        });
+    }
+ 
+    private List<RotatedRect> findCandidateContours() {
+        // returns the enclosing RotatedRect of each contour in the probability matrix that is large enough
+        // and roughly rectangular
+        List<RotatedRect> candidateRegions = new ArrayList<RotatedRect>();
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        candidateScores.clear();
+        // findContours modifies source image so probabilities pass it a clone of img_details.probabilities
+        // img_details.probabilities will be used again shortly to expand the bsrcode region
+        Imgproc.findContours(img_details.probabilities.clone(),
+            contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+
+        // stops at the deadline with the regions found so far - images with heavy texture can have many contours
+        for (int i = 0; i < contours.size() && !shouldStop(); i++) {
+            double area = Imgproc.contourArea(contours.get(i));
 
-                    ROI.candidate = ImageDisplay.getBufImg(ROI.ROI);
-                    candidateBarcodes.add(ROI);
+            if (area * getAreaMultiplier() < searchParams.THRESHOLD_MIN_AREA) // ignore contour if it is of too small a region
+                continue;
 
-                    if (DEBUG_IMAGES)
-                        cb.debug_drawCandidateRegion(new Scalar(0, 0, 255), img_details.src_scaled);
+            RotatedRect minRect = Imgproc.minAreaRect(new MatOfPoint2f(contours.get(i).toArray()));
+            if (isRectangular(area, minRect)) {
+                candidateRegions.add(minRect);
+                candidateScores.add(area / (minRect.size.width * minRect.size.height));
+            }
+        }
+        return candidateRegions;
+    }
+
+    private List<RotatedRect> findCandidateComponents() {
+        // same as findCandidateContours but labels the probability matrix once and rejects small regions
+        // from their pixel counts. Only the regions that are left get a contour, found within their bounding box
+        List<RotatedRect> candidateRegions = new ArrayList<RotatedRect>();
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        candidateScores.clear();
+
+        int num_labels = Imgproc.connectedComponentsWithStats(img_details.probabilities, labels, stats, centroids, 8, CvType.CV_32S);
+        if (num_labels < 2)
+            return candidateRegions;
+
+        int num_stats = stats.cols();
+        int[] all_stats = new int[num_labels * num_stats];
+        stats.get(0, 0, all_stats);
+
+        for (int label = 1; label < num_labels && !shouldStop(); label++) {  // label 0 is the background
+            int offset = label * num_stats;
+            if (all_stats[offset + Imgproc.CC_STAT_AREA] * getAreaMultiplier() < searchParams.THRESHOLD_MIN_AREA)
+                continue;
+
+            Rect box = new Rect(all_stats[offset + Imgproc.CC_STAT_LEFT], all_stats[offset + Imgproc.CC_STAT_TOP],
+                all_stats[offset + Imgproc.CC_STAT_WIDTH], all_stats[offset + Imgproc.CC_STAT_HEIGHT]);
+            Core.compare(labels.submat(box), new Scalar(label), componentMask, Core.CMP_EQ);
+            contours.clear();
+            Imgproc.findContours(componentMask, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE,
+                new Point(box.x, box.y));
+
+            // a component has one outer contour but take the largest in case the mask is split by its corners
+            MatOfPoint contour = null;
+            double area = 0;
+            for (MatOfPoint c : contours) {
+                double c_area = Imgproc.contourArea(c);
+                if (contour == null || c_area > area) {
+                    contour = c;
+                    area = c_area;
                 }
             }
-            if (DEBUG_IMAGES)
-                ImageDisplay.showImageFrameGrid(img_details.src_scaled, name + " with candidate regions");
+            if (contour == null || area * getAreaMultiplier() < searchParams.THRESHOLD_MIN_AREA)
+                continue;
+
+            RotatedRect minRect = Imgproc.minAreaRect(new MatOfPoint2f(contour.toArray()));
+            if (isRectangular(area, minRect)) {
+                candidateRegions.add(minRect);
+                candidateScores.add(area / (minRect.size.width * minRect.size.height));
+            }
         }
-        return candidateBarcodes;
+        return candidateRegions;
+    }
+
+    private int getAreaMultiplier() {
+        // pictures were downsampled during probability calc so we multiply it by the tile size to get area in the original picture
+        return (searchParams.RECT_HEIGHT * searchParams.RECT_WIDTH) / (searchParams.PROB_MAT_TILE_SIZE * searchParams.PROB_MAT_TILE_SIZE);
+    }
+
+    private boolean isRectangular(double area, RotatedRect minRect) {
+        // check if contour is of a rectangular object by comparing its area to that of its enclosing RotatedRect
+        double bounding_rect_area = minRect.size.width * minRect.size.height;
+        if (DEBUG_IMAGES) {
+            System.out.println(
+                "Area is " + area * getAreaMultiplier() + " MIN_AREA is " + searchParams.THRESHOLD_MIN_AREA);
+            System.out.println("area ratio is " + ((area / bounding_rect_area)));
+        }
+        return (area / bounding_rect_area) > searchParams.THRESHOLD_AREA_RATIO;
     }
 
- 
     private void calcGradientDirectionAndMagnitude() {
         // calculates magnitudes and directions of gradients in the image
         // results are stored in appropriate matrices in img_details object
-        
-        Imgproc.Scharr(img_details.src_grayscale, img_details.scharr_x, CvType.CV_32F, 1, 0);
-        Imgproc.Scharr(img_details.src_grayscale, img_details.scharr_y, CvType.CV_32F, 0, 1);
-
-        // calc angle using Core.phase function - quicker than using atan2 manually
-        Core.phase(img_details.scharr_x, img_details.scharr_y, img_details.gradient_direction, true);
+        LocalizerEvents.Stage gradientEvent = new LocalizerEvents.Stage(LocalizerEvents.GRADIENT);
+        gradientEvent.begin();
+        backend.calcGradients(img_details, debugImage ? debugSink : null, name);
+        gradientEvent.end();
+        if (gradientEvent.shouldCommit()) {
+            gradientEvent.image = name;
+            Rect search_box = img_details.getSearchBox();
+            gradientEvent.outputBytes = 2L * search_box.width * search_box.height * img_details.gradient_magnitude.elemSize();
+            gradientEvent.commit();
+        }
 
-        // convert angles from 180-360 to 0-180 range and set angles from 170-180 to 0
-        Core.inRange(img_details.gradient_direction, scalarDict.get(180), scalarDict.get(360), img_details.mask);
-        Core.add(img_details.gradient_direction, scalarDict.get(-180), img_details.gradient_direction, img_details.mask);
-        Core.inRange(img_details.gradient_direction, scalarDict.get(170), scalarDict.get(180), img_details.mask);
-        img_details.gradient_direction.setTo(ZERO_SCALAR, img_details.mask);
-        
-        // convert type after modifying angle so that angles above 360 don't get truncated
-        img_details.gradient_direction.convertTo(img_details.gradient_direction, CvType.CV_8U);
-        if(DEBUG_IMAGES)
-            write_Mat("angles.csv", img_details.gradient_direction);
-
-        // calculate magnitude of gradient, normalize and threshold
-        Core.magnitude(img_details.scharr_x, img_details.scharr_y, img_details.gradient_magnitude);
-        Core.normalize(img_details.gradient_magnitude, img_details.gradient_magnitude, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
-        Imgproc.threshold(img_details.gradient_magnitude, img_details.gradient_magnitude, 50, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
-        
-        // set angle to DUMMY_ANGLE = 255 at all points where gradient magnitude is 0 i.e. where there are no edges
-        // these angles will be ignored in the histogram calculation since that counts only up to 180
-        Core.inRange(img_details.gradient_magnitude, ZERO_SCALAR, ZERO_SCALAR, img_details.mask);
-        img_details.gradient_direction.setTo(scalarDict.get(DUMMY_ANGLE), img_details.mask);
-        // add 1 to gradient directions so that gradients of 0 can be located
-        Core.add(img_details.gradient_direction, new Scalar(1), img_details.gradient_direction);
-
-        // calculate integral image for edge density
-        img_details.edgeDensity = calcEdgeDensityIntegralImage();
-        
-        // calculate histograms for each tile
-        calcHistograms();
-        
-        if(DEBUG_IMAGES){
-            write_Mat("magnitudes.csv", img_details.gradient_magnitude);
-            write_Mat("angles_modified.csv", img_details.gradient_direction);
+        // calculate edge counts and histograms for each tile
+        LocalizerEvents.Stage histogramEvent = new LocalizerEvents.Stage(LocalizerEvents.HISTOGRAMS);
+        histogramEvent.begin();
+        backend.calcTileHistograms(img_details, searchParams.tileSize);
+        histogramEvent.end();
+        if (histogramEvent.shouldCommit()) {
+            histogramEvent.setTiles(name, rows, cols, searchParams.tileSize);
+            histogramEvent.commit();
         }
+        
+        writeDebug("magnitudes", img_details.gradient_magnitude);
+        writeDebug("angles_modified", img_details.gradient_direction);
     }
 
     private Mat calcProbabilityMatrix(int tileSize){
         // calculate probability of a barcode region in each tile based on HOG data for each tile
         
         // calculate probabilities for each pixel from window around it, normalize and threshold
-        Mat probabilities = calcProbabilityTilings(tileSize);        
+        LocalizerEvents.Stage tilingEvent = new LocalizerEvents.Stage(LocalizerEvents.TILING);
+        tilingEvent.begin();
+        Mat probabilities = backend.calcProbabilityTilings(img_details, searchParams, rows, cols, tileSize);        
      
-        double debug_prob_thresh = Imgproc.threshold(probabilities, probabilities, 128, 255, Imgproc.THRESH_BINARY);
-        
-        if (DEBUG_IMAGES){
-            System.out.println("Probability threshold is " + debug_prob_thresh);
-            write_Mat("probabilities.csv", probabilities);
-            ImageDisplay.showImageFrameGrid(img_details.gradient_magnitude, "Magnitudes");
-            ImageDisplay.showImageFrameGrid(probabilities, "histogram probabilities");            
+        Imgproc.threshold(probabilities, probabilities, 128, 255, Imgproc.THRESH_BINARY);
+        tilingEvent.end();
+        if (tilingEvent.shouldCommit()) {
+            tilingEvent.setTiles(name, rows, cols, tileSize);
+            tilingEvent.outputBytes = probabilities.total() * probabilities.elemSize();
+            tilingEvent.commit();
         }
+        
+        writeDebug("probabilities_" + tileSize, probabilities);
         return probabilities;        
     }
        
-    private Mat calcProbabilityTilings(int tileSize){
-    // calculates probability of each tile being in a 2D barcode region
-    // tiles must be square
-        assert(searchParams.RECT_HEIGHT == searchParams.RECT_WIDTH): "RECT_HEIGHT and RECT_WIDTH must be equal in searchParams imageSpecificParams";
-
-        int probMatTileSize = (int) (tileSize * (searchParams.PROB_MAT_TILE_SIZE/(1.0 * searchParams.tileSize)));
-        int threshold_min_gradient_edges = (int)(tileSize * tileSize * searchParams.THRESHOLD_MIN_GRADIENT_EDGES_MULTIPLIER);
-        
-        int right_col, bottom_row;
-        int prob_mat_right_col, prob_mat_bottom_row;
-        
-        Mat prob_window; // used to hold sub-matrices into probability matrix that represent window around current point
-
-        int num_edges;
-        double prob;
-        int max_angle_idx, second_highest_angle_index, max_angle_count, second_highest_angle_count, angle_diff;
-        
-        img_details.probabilities.setTo(ZERO_SCALAR);
-
-        for(int i = 0, row_offset = 0; i < rows; i += tileSize, row_offset += probMatTileSize){
-            // first do bounds checking for bottom right of tiles
-            
-            bottom_row = java.lang.Math.min((i + tileSize), rows);
-            prob_mat_bottom_row = java.lang.Math.min((row_offset + probMatTileSize), img_details.probMatRows);
-
-            for(int j = 0, col_offset = 0; j < cols; j += tileSize, col_offset += probMatTileSize){
-
-                // then calculate the column locations of the rectangle and set them to -1 
-                // if they are outside the matrix bounds                
-                right_col = java.lang.Math.min((j + tileSize), cols);
-                prob_mat_right_col = java.lang.Math.min((col_offset + probMatTileSize), img_details.probMatCols);
-
-                // calculate number of edges in the tile using the already calculated integral image 
-                num_edges = (int) calc_rect_sum(img_details.edgeDensity, i, bottom_row, j, right_col);
-                
-                if (num_edges < threshold_min_gradient_edges) 
-                // if gradient density is below the threshold level, prob of matrix code in this tile is 0
-                    continue;
-                
-                for(int r = 0; r < img_details.bins; r++){
-                    img_details.histArray[r] = (int) calc_rect_sum(img_details.histIntegrals.get(r), i, bottom_row, j, right_col);
-                }
-                
-                hist = Converters.vector_int_to_Mat(Arrays.asList(img_details.histArray));
-                // Mat imgWindow = img_details.gradient_direction.submat(i, bottom_row, j, right_col);
-                // Imgproc.calcHist(Arrays.asList(imgWindow), mChannels, histMask, hist, mHistSize, mRanges, false);
-                Core.sortIdx(hist, histIdx, Core.SORT_EVERY_COLUMN + Core.SORT_DESCENDING);
-
-                max_angle_idx = (int) histIdx.get(0, 0)[0];
-                max_angle_count = (int) hist.get(max_angle_idx, 0)[0];
-
-                second_highest_angle_index = (int) histIdx.get(1, 0)[0];
-                second_highest_angle_count = (int) hist.get(second_highest_angle_index, 0)[0];                
-  
-                angle_diff = Math.abs(max_angle_idx - second_highest_angle_index);
-                
-                // formula below is modified from Szentandrasi, Herout, Dubska paper pp. 4
-                prob = 0;
-                if(angle_diff != 1) // ignores tiles where there is just noise between adjacent bins in the histogram
-                    prob = 2.0 * Math.min(max_angle_count, second_highest_angle_count) / (max_angle_count + second_highest_angle_count);
-                
-                prob_window = img_details.probabilities.submat(row_offset, prob_mat_bottom_row, col_offset, prob_mat_right_col);
-                prob_window.setTo(new Scalar((int) (prob*255)));
-                        
-            }  // for j
-        }  // for i
-        
-        return img_details.probabilities;
-                
-    }
-    
-    private Mat calcEdgeDensityIntegralImage(){
-        // calculates number of edges in the image and returns it as an integral image
-        // first set all non-zero gradient magnitude points (i.e. all edges) to 1
-        // then calculate the integral image from the above
-        // we can now calculate the number of edges in any tile in the matrix using the integral image
-        Mat temp = new Mat();
-        
-        Imgproc.threshold(img_details.gradient_magnitude, temp, 1, 1, Imgproc.THRESH_BINARY);
-        Imgproc.integral(temp, img_details.edgeDensity);
-        
-        return img_details.edgeDensity;
-    }
-        
-    private void calcHistograms(){        
-        Mat target;
-        angles = img_details.gradient_direction.clone();
-
-        for(int binRange = 1, integralIndex = 0; binRange < 181; binRange += img_details.BIN_WIDTH, integralIndex++){            
-            target  = img_details.histIntegrals.get(integralIndex);
-            
-            img_details.gradient_direction.copyTo(angles);
-            Core.inRange(img_details.gradient_direction, scalarDict.get(binRange), scalarDict.get(binRange + img_details.BIN_WIDTH), mask);
-            Core.bitwise_not(mask, mask);   
-            angles.setTo(ZERO_SCALAR, mask);
-            Mat temp = new Mat();
-            
-            Imgproc.threshold(angles, temp, 0, 1, Imgproc.THRESH_BINARY);
-            Imgproc.integral(temp, target);            
-        }
-    }
-        
  }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.opencv.core.Core;
+
+/**
+ *
+ * @author karthik
+ * Loads the OpenCV native library once, the first time it is needed.
+ * The library is taken from, in order:
+ * the file named by the system property barcode.opencv.library,
+ * a copy bundled in the jar under /native/[os]-[arch]/, e.g. /native/linux-amd64/libopencv_java320.so,
+ * which is extracted to a temporary file before loading,
+ * and finally java.library.path with System.loadLibrary.
+ * Nothing is loaded again if the application already loaded OpenCV itself.
+ */
+public class NativeLoader {
+
+    public static final String LIBRARY_PROPERTY = "barcode.opencv.library";
+
+    private static volatile boolean loaded = false;
+    private static String source;
+
+    private NativeLoader() {
+    }
+
+    public static void load() {
+        if (loaded)
+            return;
+        synchronized (NativeLoader.class) {
+            if (loaded)
+                return;
+            if (isAlreadyLoaded())
+                source = "already loaded";
+            else {
+                String path = System.getProperty(LIBRARY_PROPERTY);
+                if (path != null) {
+                    System.load(new File(path).getAbsolutePath());
+                    source = path;
+                } else if (!loadBundled()) {
+                    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+                    source = "java.library.path";
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    public static String getSource() {
+        // where the library was loaded from, or null if load has not been called
+        return source;
+    }
+
+    private static boolean isAlreadyLoaded() {
+        // calling any native method tells us if the library is there
+        try {
+            Core.getNumberOfCPUs();
+            return true;
+        } catch (UnsatisfiedLinkError ule) {
+            return false;
+        }
+    }
+
+    private static boolean loadBundled() {
+        // returns false if the jar has no library for this platform
+        String library = System.mapLibraryName(Core.NATIVE_LIBRARY_NAME);
+        String resource = "/native/" + getPlatform() + "/" + library;
+        InputStream in = NativeLoader.class.getResourceAsStream(resource);
+        if (in == null)
+            return false;
+
+        File extracted;
+        try {
+            try {
+                int dot = library.lastIndexOf('.');
+                extracted = File.createTempFile(library.substring(0, dot) + "-", library.substring(dot));
+                extracted.deleteOnExit();
+                OutputStream out = new FileOutputStream(extracted);
+                try {
+                    byte[] buffer = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) != -1)
+                        out.write(buffer, 0, n);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new UnsatisfiedLinkError("Could not extract " + resource + " - " + ioe.getMessage());
+        }
+        System.load(extracted.getAbsolutePath());
+        source = "jar:" + resource;
+        return true;
+    }
+
+    private static String getPlatform() {
+        // e.g. linux-amd64, windows-amd64, mac-aarch64
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.startsWith("windows"))
+            os = "windows";
+        else if (os.startsWith("mac"))
+            os = "mac";
+        else if (os.startsWith("linux"))
+            os = "linux";
+        else
+            os = os.replace(' ', '_');
+        return os + "-" + System.getProperty("os.arch").toLowerCase();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.utils.Converters;
+
+/**
+ *
+ * @author karthik
+ * Reference implementation of the per-pixel stages using OpenCV calls
+ * the gradient stage is either the float one or IntegerGradients
+ */
+class OpenCVBackend implements LocalizerBackend {
+
+    // used in histogram calculation
+    private static final int DUMMY_ANGLE = 255;
+    private static final Scalar ZERO_SCALAR = new Scalar(0);
+    private static final Map<Integer, Scalar> scalarDict = new HashMap<Integer, Scalar>();
+
+    static{
+        // create a hashmap with Scalar objects used during histogram calculation
+        // done so that we can reuse these objects instead of creating and destroying them
+        for(int r = 1; r <= 181; r += ImageInfo.BIN_WIDTH)
+            scalarDict.put(r, new Scalar(r));
+
+        // add objects used when trimming angles to 0-360 range
+        scalarDict.put(170, new Scalar(170));
+        scalarDict.put(180, new Scalar(180));
+        scalarDict.put(-180, new Scalar(-180));
+        scalarDict.put(360, new Scalar(360));
+        scalarDict.put(DUMMY_ANGLE, new Scalar(DUMMY_ANGLE));
+    }
+
+    private Mat hist = new MatOfInt(ImageInfo.bins, 1);
+    private Mat histIdx = new Mat();
+    private Integer[] histArray = new Integer[ImageInfo.bins];
+    private final int[] tile_hist = new int[ImageInfo.bins];
+    private byte[] directions, edges;
+
+    private IntegerGradients integerGradients = null;  // set when the integer gradient stage is used instead of the float one
+
+    OpenCVBackend(boolean useIntegerGradients) {
+        if (useIntegerGradients)
+            integerGradients = new IntegerGradients();
+    }
+
+    public void calcGradients(ImageInfo img_details, DebugSink debug, String name) {
+        if (integerGradients != null)
+            integerGradients.calcGradientDirectionAndMagnitude(img_details);
+        else
+            calcFloatGradients(img_details, debug, name);
+    }
+
+    private void calcFloatGradients(ImageInfo img_details, DebugSink debug, String name) {
+        // float version of the gradient stage using CV_32F Scharr derivatives and Core.phase for the angles
+        Mat gray = img_details.getSearchArea();
+        Imgproc.Scharr(gray, img_details.scharr_x, CvType.CV_32F, 1, 0);
+        Imgproc.Scharr(gray, img_details.scharr_y, CvType.CV_32F, 0, 1);
+
+        // calc angle using Core.phase function - quicker than using atan2 manually
+        Core.phase(img_details.scharr_x, img_details.scharr_y, img_details.gradient_direction, true);
+
+        // convert angles from 180-360 to 0-180 range and set angles from 170-180 to 0
+        Core.inRange(img_details.gradient_direction, scalarDict.get(180), scalarDict.get(360), img_details.mask);
+        Core.add(img_details.gradient_direction, scalarDict.get(-180), img_details.gradient_direction, img_details.mask);
+        Core.inRange(img_details.gradient_direction, scalarDict.get(170), scalarDict.get(180), img_details.mask);
+        img_details.gradient_direction.setTo(ZERO_SCALAR, img_details.mask);
+
+        // convert type after modifying angle so that angles above 360 don't get truncated
+        img_details.gradient_direction.convertTo(img_details.gradient_direction, CvType.CV_8U);
+        if(debug != null)
+            debug.write(name, "angles", img_details.gradient_direction);
+
+        // calculate magnitude of gradient, normalize and threshold
+        Core.magnitude(img_details.scharr_x, img_details.scharr_y, img_details.gradient_magnitude);
+        Core.normalize(img_details.gradient_magnitude, img_details.gradient_magnitude, 0, 255, Core.NORM_MINMAX, CvType.CV_8U);
+        Imgproc.threshold(img_details.gradient_magnitude, img_details.gradient_magnitude, 50, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+
+        // set angle to DUMMY_ANGLE = 255 at all points where gradient magnitude is 0 i.e. where there are no edges
+        // these angles will be ignored in the histogram calculation since that counts only up to 180
+        Core.inRange(img_details.gradient_magnitude, ZERO_SCALAR, ZERO_SCALAR, img_details.mask);
+        img_details.gradient_direction.setTo(scalarDict.get(DUMMY_ANGLE), img_details.mask);
+        // add 1 to gradient directions so that gradients of 0 can be located
+        Core.add(img_details.gradient_direction, new Scalar(1), img_details.gradient_direction);
+    }
+
+    public void calcTileHistograms(ImageInfo img_details, int tileSize) {
+        // copies the gradient data out once and counts it into the tile histograms
+        // the gradient Mats only cover the search box if search regions are set
+        int rows = img_details.gradient_direction.rows();
+        int cols = img_details.gradient_direction.cols();
+        if (directions == null || directions.length != rows * cols) {
+            directions = new byte[rows * cols];
+            edges = new byte[rows * cols];
+        }
+        img_details.gradient_direction.get(0, 0, directions);
+        img_details.gradient_magnitude.get(0, 0, edges);
+        img_details.tileHistograms.build(directions, edges, img_details.getSearchMaskPixels(), img_details.getSearchBox(),
+            img_details.src_grayscale.rows(), img_details.src_grayscale.cols(), tileSize);
+    }
+
+    public Mat calcProbabilityTilings(ImageInfo img_details, SearchParameters searchParams, int rows, int cols, int tileSize){
+    // calculates probability of each tile being in a 2D barcode region
+    // tiles must be square
+        assert(searchParams.RECT_HEIGHT == searchParams.RECT_WIDTH): "RECT_HEIGHT and RECT_WIDTH must be equal in searchParams imageSpecificParams";
+
+        TileHistogramPyramid pyramid = img_details.tileHistograms;
+        int level = pyramid.getLevel(tileSize);
+        int probMatTileSize = (int) (tileSize * (searchParams.PROB_MAT_TILE_SIZE/(1.0 * searchParams.tileSize)));
+        int threshold_min_gradient_edges = (int)(tileSize * tileSize * searchParams.THRESHOLD_MIN_GRADIENT_EDGES_MULTIPLIER);
+
+        int prob_mat_right_col, prob_mat_bottom_row;
+
+        Mat prob_window; // used to hold sub-matrices into probability matrix that represent window around current point
+
+        int num_edges;
+        double prob;
+        int max_angle_idx, second_highest_angle_index, max_angle_count, second_highest_angle_count, angle_diff;
+
+        img_details.probabilities.setTo(ZERO_SCALAR);
+
+        for(int i = 0, tile_row = 0, row_offset = 0; i < rows; i += tileSize, tile_row++, row_offset += probMatTileSize){
+            // first do bounds checking for bottom right of tiles
+
+            prob_mat_bottom_row = java.lang.Math.min((row_offset + probMatTileSize), img_details.probMatRows);
+
+            for(int j = 0, tile_col = 0, col_offset = 0; j < cols; j += tileSize, tile_col++, col_offset += probMatTileSize){
+
+                // then calculate the column locations of the rectangle
+                prob_mat_right_col = java.lang.Math.min((col_offset + probMatTileSize), img_details.probMatCols);
+
+                // get number of edges and orientation histogram for the tile from the already calculated tile histograms
+                num_edges = pyramid.getTile(level, tile_row, tile_col, tile_hist);
+
+                if (num_edges < threshold_min_gradient_edges)
+                // if gradient density is below the threshold level, prob of matrix code in this tile is 0
+                    continue;
+
+                for(int r = 0; r < ImageInfo.bins; r++){
+                    histArray[r] = tile_hist[r];
+                }
+
+                hist = Converters.vector_int_to_Mat(Arrays.asList(histArray));
+                // Mat imgWindow = img_details.gradient_direction.submat(i, bottom_row, j, right_col);
+                // Imgproc.calcHist(Arrays.asList(imgWindow), mChannels, histMask, hist, mHistSize, mRanges, false);
+                Core.sortIdx(hist, histIdx, Core.SORT_EVERY_COLUMN + Core.SORT_DESCENDING);
+
+                max_angle_idx = (int) histIdx.get(0, 0)[0];
+                max_angle_count = (int) hist.get(max_angle_idx, 0)[0];
+
+                second_highest_angle_index = (int) histIdx.get(1, 0)[0];
+                second_highest_angle_count = (int) hist.get(second_highest_angle_index, 0)[0];
+
+                angle_diff = Math.abs(max_angle_idx - second_highest_angle_index);
+
+                // formula below is modified from Szentandrasi, Herout, Dubska paper pp. 4
+                prob = 0;
+                if(angle_diff != 1) // ignores tiles where there is just noise between adjacent bins in the histogram
+                    prob = 2.0 * Math.min(max_angle_count, second_highest_angle_count) / (max_angle_count + second_highest_angle_count);
+
+                prob_window = img_details.probabilities.submat(row_offset, prob_mat_bottom_row, col_offset, prob_mat_right_col);
+                prob_window.setTo(new Scalar((int) (prob*255)));
+
+            }  // for j
+        }  // for i
+
+        return img_details.probabilities;
+
+    }
+}
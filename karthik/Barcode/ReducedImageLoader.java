@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ *
+ * @author karthik
+ * Loads an image file at reduced resolution and/or as grayscale so that the decoder does the downscaling
+ * and colour conversion that preprocess_image would otherwise do after a full resolution colour decode.
+ * Also reads rectangular regions of the full resolution image for candidate regions.
+ */
+class ReducedImageLoader {
+
+    // largest reduction first - we want the biggest one that still leaves at least MAX_ROWS rows
+    private static final int[] REDUCTION_FACTORS = {8, 4, 2};
+
+    private ReducedImageLoader() {
+    }
+
+    static ImageInfo load(String filename, int min_rows, boolean grayscale) throws IOException {
+        // reads the image header to get its size and then decodes it at the largest reduction
+        // that keeps at least min_rows rows. Falls back to a full decode if the header cannot be read
+        int[] dims = readImageSize(filename);
+        int factor = (dims == null) ? 1 : getReductionFactor(dims[0], min_rows);
+
+        if (factor == 1)
+            return grayscale ? loadGrayscale(filename) : new ImageInfo(Imgcodecs.imread(filename, Imgcodecs.CV_LOAD_IMAGE_COLOR));
+
+        // ignore EXIF orientation so that the reduced image has the same layout as the regions ImageIO reads later
+        Mat reduced = Imgcodecs.imread(filename, getReducedFlag(factor, grayscale) | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        ImageInfo img_details = new ImageInfo(reduced);
+        img_details.setFullResolutionSource(filename, dims[0], dims[1]);
+        return img_details;
+    }
+
+    static ImageInfo loadGrayscale(String filename) {
+        // decodes the image straight to a single channel and remembers the file so colour regions can be read later
+        Mat gray = Imgcodecs.imread(filename, Imgcodecs.CV_LOAD_IMAGE_GRAYSCALE | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        ImageInfo img_details = new ImageInfo(gray);
+        img_details.setFullResolutionSource(filename, gray.rows(), gray.cols());
+        return img_details;
+    }
+
+    static int getReductionFactor(int rows, int min_rows) {
+        for (int factor : REDUCTION_FACTORS)
+            if (rows / factor >= min_rows)
+                return factor;
+
+        return 1;
+    }
+
+    private static int getReducedFlag(int factor, boolean grayscale) {
+        switch (factor) {
+            case 8:
+                return grayscale ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8 : Imgcodecs.IMREAD_REDUCED_COLOR_8;
+            case 4:
+                return grayscale ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4 : Imgcodecs.IMREAD_REDUCED_COLOR_4;
+            default:
+                return grayscale ? Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2 : Imgcodecs.IMREAD_REDUCED_COLOR_2;
+        }
+    }
+
+    static int[] readImageSize(String filename) throws IOException {
+        // returns {rows, cols} from the image header without decoding the pixels
+        // or null if no registered ImageReader understands the file
+        ImageInputStream iis = ImageIO.createImageInputStream(new File(filename));
+        if (iis == null)
+            return null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[]{reader.getHeight(0), reader.getWidth(0)};
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    static Mat readRegion(String filename, int topRow, int bottomRow, int leftCol, int rightCol, boolean grayscale) throws IOException {
+        // decodes only the given region of the full resolution image and returns it as a BGR or single channel Mat
+        // returns null if ImageIO cannot read the file so that the caller can fall back to imread
+        if (bottomRow <= topRow || rightCol <= leftCol)
+            return emptyRegion(bottomRow - topRow, rightCol - leftCol, grayscale);
+        ImageReader reader = openReader(filename);
+        if (reader == null)
+            return null;
+        try {
+            return readRegion(reader, topRow, bottomRow, leftCol, rightCol, grayscale);
+        } finally {
+            closeReader(reader);
+        }
+    }
+
+    static ImageReader openReader(String filename) throws IOException {
+        // reader for the first image in the file, for callers that read many regions of the same file
+        // returns null if no registered ImageReader understands the file - close it with closeReader
+        ImageInputStream iis = ImageIO.createImageInputStream(new File(filename));
+        if (iis == null)
+            return null;
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            return null;
+        }
+        ImageReader reader = readers.next();
+        // not seek forward only so that the same image can be read again for each region
+        reader.setInput(iis, false, true);
+        return reader;
+    }
+
+    static Mat readRegion(ImageReader reader, int topRow, int bottomRow, int leftCol, int rightCol, boolean grayscale) throws IOException {
+        // same as readRegion on a file but with a reader from openReader, which is left open
+        // an empty region gives an empty Mat as submat would, since ImageIO rejects empty source regions
+        if (bottomRow <= topRow || rightCol <= leftCol)
+            return emptyRegion(bottomRow - topRow, rightCol - leftCol, grayscale);
+        try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(leftCol, topRow, rightCol - leftCol, bottomRow - topRow));
+            return toMat(reader.read(0, param), grayscale);
+        } catch (IIOException iioe) {
+            // the reader understood the header but not the data e.g. CMYK or YCCK JPEGs
+            return null;
+        }
+    }
+
+    static void closeReader(ImageReader reader) throws IOException {
+        Object input = reader.getInput();
+        reader.dispose();
+        if (input instanceof ImageInputStream)
+            ((ImageInputStream) input).close();
+    }
+
+    private static Mat emptyRegion(int rows, int cols, boolean grayscale) {
+        return new Mat(Math.max(rows, 0), Math.max(cols, 0), grayscale ? CvType.CV_8UC1 : CvType.CV_8UC3);
+    }
+
+    private static Mat toMat(BufferedImage img, boolean grayscale) {
+        // copies a BufferedImage of any type into a CV_8UC3 Mat with the channel order imread uses
+        // or into a CV_8UC1 Mat if grayscale is set. Colour images are made grayscale with cvtColor rather than
+        // Java2D so the weights are the same as for the images the rest of the localizer converts
+        if (grayscale && img.getType() == BufferedImage.TYPE_BYTE_GRAY)
+            return copyPixels(img, CvType.CV_8UC1);
+        BufferedImage converted = img;
+        if (img.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            converted = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            Graphics g = converted.getGraphics();
+            g.drawImage(img, 0, 0, null);
+            g.dispose();
+        }
+        Mat result = copyPixels(converted, CvType.CV_8UC3);
+        if (grayscale)
+            Imgproc.cvtColor(result, result, Imgproc.COLOR_BGR2GRAY);
+        return result;
+    }
+
+    private static Mat copyPixels(BufferedImage img, int type) {
+        byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        Mat result = new Mat(img.getHeight(), img.getWidth(), type);
+        result.put(0, 0, data);
+        return result;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ *
+ * @author karthik
+ * LRU cache of localizer results for images that are submitted more than once, e.g. retries, duplicate uploads
+ * or identical frames from a stalled camera. Entries hold the candidate locations and their crops and are evicted,
+ * least recently used first, when there are more than maxEntries or their crops take more than maxBytes.
+ * In CONTENT mode the key is a hash of the file bytes or of the pixels of the Mat, so only exact copies match.
+ * In PERCEPTUAL mode the key is a 64 bit difference hash of the scaled grayscale image and any cached image
+ * within maxDistance bits of it matches, which also catches near duplicate frames. The image still has to be
+ * decoded and scaled in this mode but localization and cropping are skipped.
+ * Every call returns its own copies of the candidates but copies share their crop Mats, which must not be modified.
+ */
+public class ResultCache {
+
+    public enum KeyMode {
+        CONTENT, PERCEPTUAL
+    }
+
+    private static final long ENTRY_OVERHEAD = 256;  // rough size of an entry without its crops, in bytes
+
+    private final KeyMode mode;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxDistance;
+
+    // access ordered so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    private long hits, misses, evictions;
+
+    public ResultCache(int maxEntries, long maxBytes) {
+        this(KeyMode.CONTENT, maxEntries, maxBytes, 0);
+    }
+
+    public ResultCache(KeyMode mode, int maxEntries, long maxBytes, int maxDistance) {
+        // maxDistance is the number of differing hash bits allowed in PERCEPTUAL mode, 4 to 6 suits camera noise
+        if (maxEntries < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("ResultCache needs room for at least one entry");
+        this.mode = mode;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxDistance = maxDistance;
+    }
+
+    public List<CandidateResult> locateBarcode(String filename, TryHarderFlags flag, ImageLoadFlags loadFlag) throws IOException {
+        if (mode == KeyMode.CONTENT) {
+            String key = flag + ":" + loadFlag + ":" + contentHash(Files.readAllBytes(Paths.get(filename)));
+            List<CandidateResult> cached = get(key, 0);
+            if (cached != null)
+                return cached;
+            return put(key, 0, new MatrixBarcode(filename, false, flag, loadFlag));
+        }
+        return locatePerceptual(flag + ":" + loadFlag, new MatrixBarcode(filename, false, flag, loadFlag));
+    }
+
+    public List<CandidateResult> locateBarcode(String image_name, Mat img, TryHarderFlags flag) throws IOException {
+        if (mode == KeyMode.CONTENT) {
+            // images passed to a Barcode are 8 bit so the pixels can be read as bytes
+            Mat pixels = img.isContinuous() ? img : img.clone();
+            byte[] data = new byte[(int) (pixels.total() * pixels.channels())];
+            pixels.get(0, 0, data);
+            String key = flag + ":" + img.rows() + "x" + img.cols() + "x" + img.channels() + ":" + contentHash(data);
+            List<CandidateResult> cached = get(key, 0);
+            if (cached != null)
+                return cached;
+            return put(key, 0, new MatrixBarcode(image_name, img, flag));
+        }
+        return locatePerceptual(flag.toString(), new MatrixBarcode(image_name, img, flag));
+    }
+
+    private List<CandidateResult> locatePerceptual(String prefix, Barcode barcode) throws IOException {
+        long hash = differenceHash(barcode.img_details.src_grayscale);
+        // images of different sizes never match since candidate coordinates would not carry over
+        String key = prefix + ":" + barcode.img_details.originalRows() + "x" + barcode.img_details.originalCols();
+        List<CandidateResult> cached = get(key, hash);
+        if (cached != null)
+            return cached;
+        return put(key, hash, barcode);
+    }
+
+    private synchronized List<CandidateResult> get(String key, long hash) {
+        Entry entry = null;
+        if (mode == KeyMode.CONTENT)
+            entry = entries.get(key + "#" + hash);
+        else {
+            // linear scan since near matches cannot be looked up by key - entries are few and the test is cheap
+            String found = null;
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+                if (e.getValue().key.equals(key) && Long.bitCount(e.getValue().hash ^ hash) <= maxDistance) {
+                    found = e.getKey();
+                    break;
+                }
+            if (found != null)
+                entry = entries.get(found);  // get moves it to the most recently used end
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(entry.candidates);
+    }
+
+    private List<CandidateResult> put(String key, long hash, Barcode barcode) throws IOException {
+        // localizes outside the lock so other threads can use the cache meanwhile
+        List<CandidateResult> candidates = new ArrayList<CandidateResult>(barcode.locateBarcode());
+        long size = ENTRY_OVERHEAD;
+        for (CandidateResult candidate : candidates) {
+            Mat crop = candidate.getROI();
+            if (crop != null)
+                size += crop.total() * crop.elemSize();
+        }
+
+        Entry entry = new Entry(key, hash, candidates, size);
+        synchronized (this) {
+            // perceptual entries are stored under their hash as well so near duplicates get their own entry
+            Entry previous = entries.put(key + "#" + hash, entry);
+            if (previous != null)
+                bytes -= previous.size;
+            bytes += size;
+            evict();
+        }
+        return copy(candidates);
+    }
+
+    private void evict() {
+        Iterator<Entry> lru = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && lru.hasNext()) {
+            bytes -= lru.next().size;
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    private static List<CandidateResult> copy(List<CandidateResult> candidates) {
+        List<CandidateResult> copies = new ArrayList<CandidateResult>(candidates.size());
+        for (CandidateResult candidate : candidates)
+            copies.add(candidate.copy());
+        return copies;
+    }
+
+    static String contentHash(byte[] data) {
+        // two independent checksums and the length - quick to calculate and accidental collisions are very unlikely
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        return data.length + "-" + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(adler.getValue());
+    }
+
+    static long differenceHash(Mat grayscale) {
+        // shrinks the image to 9x8 and sets one bit for each pair of horizontal neighbours where the left one is brighter
+        Mat small = new Mat();
+        Imgproc.resize(grayscale, small, new Size(9, 8), 0, 0, Imgproc.INTER_AREA);
+        small.convertTo(small, CvType.CV_32F);
+        float[] pixels = new float[72];
+        small.get(0, 0, pixels);
+        long hash = 0;
+        for (int r = 0; r < 8; r++)
+            for (int c = 0; c < 8; c++)
+                hash = (hash << 1) | ((pixels[r * 9 + c] > pixels[r * 9 + c + 1]) ? 1 : 0);
+        return hash;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : hits / (1.0 * lookups);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return bytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized String getStatistics() {
+        return "entries " + entries.size() + " bytes " + bytes + " hits " + hits + " misses " + misses
+            + " evictions " + evictions + " hit rate " + Math.round(100 * getHitRate()) + "%";
+    }
+
+    private static class Entry {
+
+        final String key;
+        final long hash;
+        final List<CandidateResult> candidates;
+        final long size;
+
+        Entry(String key, long hash, List<CandidateResult> candidates, long size) {
+            this.key = key;
+            this.hash = hash;
+            this.candidates = candidates;
+            this.size = size;
+        }
+    }
+}
@@ -31,7 +31,7 @@ class SearchParameters {
     static final double THRESHOLD_VARIANCE = 75;
 
     Size elem_size, large_elem_size;
-    final int MAX_ROWS = 500;  //image with more rows than MAX_ROWS is scaled down to make finding barcode quicker
+    static final int MAX_ROWS = 500;  //image with more rows than MAX_ROWS is scaled down to make finding barcode quicker
     
     // threshold for ratio of contour area to bounding rectangle area - used to see if contour shape is roughly rectangular
     double THRESHOLD_AREA_RATIO = 0.4;  
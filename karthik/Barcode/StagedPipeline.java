@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * @author karthik
+ * Processes image files in four stages that each have their own worker threads, connected by bounded queues:
+ * LOAD decodes the file and prepares it for searching, LOCALIZE runs locateBarcode, NORMALIZE crops, straightens,
+ * resizes and converts the candidates and DECODE passes each candidate to the caller's CandidateDecoder.
+ * A stage whose output queue is full waits, so a slow stage holds back the stages before it rather than
+ * letting work pile up in memory. Queue depth and utilization of each stage show which one is the bottleneck.
+ */
+public class StagedPipeline {
+
+    public enum Stage {
+        LOAD, LOCALIZE, NORMALIZE, DECODE
+    }
+
+    public interface CandidateDecoder {
+
+        // returns the text of the code in the candidate or null if it cannot be decoded
+        // called from several DECODE threads at once
+        String decode(CandidateResult candidate) throws IOException;
+    }
+
+    public interface ResultListener {
+
+        // called on a DECODE thread once all candidates of an image have been through the decoder
+        // decoded holds the text of each candidate, null for candidates that did not decode
+        void onResult(String filename, List<CandidateResult> candidates, List<String> decoded);
+
+        // called on the thread of the stage that failed - the image does not go through the later stages
+        void onError(String filename, Stage stage, Throwable error);
+    }
+
+    private static final Job END = new Job(null);  // tells a worker that no more jobs will arrive
+    private static final long POLL_MILLIS = 10;  // how long a blocked put waits before checking the workers again
+
+    private final TryHarderFlags flag;
+    private final ImageLoadFlags loadFlag;
+    private final CandidateDecoder decoder;
+    private final ResultListener listener;
+
+    private final StageWorkers[] stages = new StageWorkers[Stage.values().length];
+    private final CountDownLatch finished;
+    private final ReentrantLock submit_lock = new ReentrantLock(true);  // makes the accepting check and queueing atomic with shutdown
+    private volatile boolean accepting = true;
+    private final long start_nanos = System.nanoTime();
+
+    public StagedPipeline(TryHarderFlags flag, ImageLoadFlags loadFlag, CandidateDecoder decoder, ResultListener listener) {
+        this(flag, loadFlag, decoder, listener, 1, Runtime.getRuntime().availableProcessors(), 2, 2, 16);
+    }
+
+    public StagedPipeline(TryHarderFlags flag, ImageLoadFlags loadFlag, CandidateDecoder decoder, ResultListener listener,
+        int loadThreads, int localizeThreads, int normalizeThreads, int decodeThreads, int queueCapacity) {
+        if (loadThreads < 1 || localizeThreads < 1 || normalizeThreads < 1 || decodeThreads < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("StagedPipeline needs at least one thread per stage and a queue capacity of 1 or more");
+        this.flag = flag;
+        this.loadFlag = loadFlag;
+        this.decoder = decoder;
+        this.listener = listener;
+
+        int[] threads = {loadThreads, localizeThreads, normalizeThreads, decodeThreads};
+        for (Stage stage : Stage.values())
+            stages[stage.ordinal()] = new StageWorkers(stage, threads[stage.ordinal()], queueCapacity);
+        finished = new CountDownLatch(decodeThreads);
+        for (StageWorkers stage : stages)
+            stage.start();
+    }
+
+    public void submit(String filename) throws InterruptedException {
+        // queues filename for the LOAD stage - waits while the LOAD queue is full
+        // a file submitted after shutdown, or while the LOAD workers have stopped, is failed through listener.onError
+        StageWorkers load = stages[Stage.LOAD.ordinal()];
+        Job job = new Job(filename);
+        while (true) {
+            // the lock is only held for one short wait at a time so shutdown can get in between
+            // and END can never be queued ahead of a job that was accepted
+            submit_lock.lockInterruptibly();
+            try {
+                if (!accepting || load.running.get() == 0)
+                    break;
+                if (load.queue.offer(job, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                    return;
+            } finally {
+                submit_lock.unlock();
+            }
+        }
+        listener.onError(filename, Stage.LOAD, new IllegalStateException("StagedPipeline has been shut down"));
+    }
+
+    public void shutdown() throws InterruptedException {
+        // finishes the images already submitted and stops all workers - new submissions are refused
+        submit_lock.lockInterruptibly();
+        try {
+            if (!accepting)
+                return;
+            accepting = false;
+            stages[Stage.LOAD.ordinal()].end();
+        } finally {
+            submit_lock.unlock();
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    private void process(Stage stage, Job job) throws IOException {
+        switch (stage) {
+            case LOAD:
+                job.barcode = new MatrixBarcode(job.filename, false, flag, loadFlag);
+                break;
+            case LOCALIZE:
+                job.candidates = new ArrayList<CandidateResult>(job.barcode.locateBarcode());
+                break;
+            case NORMALIZE:
+                // each job has its own Barcode so the crops can be made on this thread while LOCALIZE
+                // works on the next image
+                for (CandidateResult candidate : job.candidates)
+                    candidate.getCandidate();
+                job.barcode = null;
+                break;
+            case DECODE:
+                List<String> decoded = new ArrayList<String>(job.candidates.size());
+                for (CandidateResult candidate : job.candidates)
+                    decoded.add(decoder.decode(candidate));
+                listener.onResult(job.filename, job.candidates, decoded);
+                break;
+        }
+    }
+
+    public int getQueueDepth(Stage stage) {
+        // jobs waiting for a worker of this stage
+        return stages[stage.ordinal()].queue.size();
+    }
+
+    public long getProcessedCount(Stage stage) {
+        return stages[stage.ordinal()].processed.get();
+    }
+
+    public long getErrorCount(Stage stage) {
+        return stages[stage.ordinal()].errors.get();
+    }
+
+    public double getUtilization(Stage stage) {
+        // share of the time since the pipeline started that the workers of this stage were busy, from 0 to 1
+        StageWorkers workers = stages[stage.ordinal()];
+        long elapsed = System.nanoTime() - start_nanos;
+        return (elapsed <= 0) ? 0 : workers.busy_nanos.get() / (1.0 * elapsed * workers.threads.length);
+    }
+
+    public String getStatistics() {
+        StringBuilder stats = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            StageWorkers workers = stages[stage.ordinal()];
+            stats.append(stage).append(" threads ").append(workers.threads.length)
+                .append(" queued ").append(getQueueDepth(stage)).append('/').append(workers.capacity)
+                .append(" processed ").append(getProcessedCount(stage))
+                .append(" errors ").append(getErrorCount(stage))
+                .append(" utilization ").append(Math.round(100 * getUtilization(stage))).append("%")
+                .append(System.getProperty("line.separator"));
+        }
+        return stats.toString();
+    }
+
+    private static class Job {
+
+        final String filename;
+        Barcode barcode;
+        List<CandidateResult> candidates;
+
+        Job(String filename) {
+            this.filename = filename;
+        }
+    }
+
+    private class StageWorkers {
+
+        final Stage stage;
+        final BlockingQueue<Job> queue;
+        final int capacity;
+        final Thread[] threads;
+        final AtomicInteger running;
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong busy_nanos = new AtomicLong();
+
+        StageWorkers(Stage stage, int num_threads, int capacity) {
+            this.stage = stage;
+            this.capacity = capacity;
+            queue = new ArrayBlockingQueue<Job>(capacity);
+            threads = new Thread[num_threads];
+            running = new AtomicInteger(num_threads);
+            for (int i = 0; i < num_threads; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }, "barcode-" + stage.name().toLowerCase() + "-" + (i + 1));
+                threads[i].setDaemon(true);
+            }
+        }
+
+        void start() {
+            for (Thread t : threads)
+                t.start();
+        }
+
+        void end() throws InterruptedException {
+            // END is queued behind all jobs so every job is taken before the workers stop
+            // gives up if the workers have already stopped, since nothing would ever make room in the queue
+            for (int i = 0; i < threads.length; i++)
+                while (!queue.offer(END, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                    if (running.get() == 0)
+                        return;
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    Job job = queue.take();
+                    if (job == END)
+                        break;
+                    long job_start = System.nanoTime();
+                    boolean ok = true;
+                    try {
+                        process(stage, job);
+                    } catch (Throwable t) {
+                        ok = false;
+                        errors.incrementAndGet();
+                        listener.onError(job.filename, stage, t);
+                    }
+                    busy_nanos.addAndGet(System.nanoTime() - job_start);
+                    processed.incrementAndGet();
+                    // waiting here while the next queue is full is what limits the stages before a slow one
+                    if (ok && stage != Stage.DECODE)
+                        stages[stage.ordinal() + 1].queue.put(job);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // the last worker of a stage to stop tells the workers of the next stage to stop
+                if (running.decrementAndGet() == 0 && stage != Stage.DECODE) {
+                    try {
+                        stages[stage.ordinal() + 1].end();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (stage == Stage.DECODE)
+                    finished.countDown();
+            }
+        }
+    }
+}
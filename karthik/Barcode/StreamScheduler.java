@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Mat;
+
+/**
+ *
+ * @author karthik
+ * Localizes frames from many live streams, e.g. a camera at each dock door, on one fixed pool of worker threads.
+ * Each stream has its own capture thread, which keeps only the newest frame as LiveFramePipeline does, its own
+ * Barcode workspace that is reused from frame to frame and a cap on how many frames per second are localized.
+ * Workers share out their time by weight: a free worker takes the next frame from the ready stream that has had
+ * the least localization time for its weight, so a busy stream cannot starve the others and a stream with twice
+ * the weight gets about twice the time when the pool is saturated. A stream is only worked on by one thread at a time.
+ */
+public class StreamScheduler {
+
+    public interface StreamListener {
+
+        // called on a worker thread for each localized frame - frame and the crops are only valid until it returns
+        // lagNanos is the time from capture to the result
+        void onResult(String streamId, Mat frame, long frameNumber, List<CandidateResult> candidates, long lagNanos);
+    }
+
+    private final TryHarderFlags flag;
+    private final Thread[] workers;
+    private final Object lock = new Object();
+    private final List<Stream> streams = new ArrayList<Stream>();
+    private volatile boolean running;
+
+    public StreamScheduler(int workerThreads, TryHarderFlags flag) {
+        if (workerThreads < 1)
+            throw new IllegalArgumentException("StreamScheduler needs at least one worker thread");
+        this.flag = flag;
+        workers = new Thread[workerThreads];
+    }
+
+    public void addStream(String id, LiveFramePipeline.FrameSource source, double weight, double maxFps, StreamListener listener) {
+        // maxFps of 0 or less means no cap - weight must be positive
+        if (weight <= 0)
+            throw new IllegalArgumentException("Stream weight must be positive");
+        final Stream stream = new Stream(id, source, weight, maxFps, listener);
+        synchronized (lock) {
+            for (Stream s : streams)
+                if (s.id.equals(id))
+                    throw new IllegalArgumentException("Stream " + id + " has already been added");
+            // a new stream starts level with the least served stream so it does not take over the pool
+            stream.virtual_time = minVirtualTime();
+            streams.add(stream);
+            // checked under the lock so that a concurrent start or stop sees the stream either before or after
+            // it is added and its capture thread is started exactly once
+            if (running)
+                stream.start();
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            running = true;
+            for (Stream stream : streams)
+                stream.start();
+        }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "barcode-stream-worker-" + (i + 1));
+            workers[i].start();
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        // stops capture and workers - frames being localized are finished first
+        List<Stream> all;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+            all = new ArrayList<Stream>(streams);
+        }
+        for (Stream stream : all)
+            if (stream.captureThread != null)
+                stream.captureThread.join();
+        for (Thread worker : workers)
+            if (worker != null)
+                worker.join();
+    }
+
+    private double minVirtualTime() {
+        double min = Double.MAX_VALUE;
+        for (Stream s : streams)
+            min = Math.min(min, s.virtual_time);
+        return streams.isEmpty() ? 0 : min;
+    }
+
+    private void work() {
+        while (true) {
+            Stream stream;
+            Frame frame;
+            synchronized (lock) {
+                stream = nextStream();
+                while (stream == null && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    stream = nextStream();
+                }
+                if (stream == null)
+                    return;
+                frame = stream.latest;
+                stream.latest = null;
+                stream.busy = true;
+            }
+
+            long start = System.nanoTime();
+            try {
+                List<CandidateResult> candidates = stream.localize(frame);
+                long lag = System.nanoTime() - frame.capture_nanos;
+                stream.listener.onResult(stream.id, frame.image, frame.number, candidates, lag);
+                stream.recordLag(lag);
+            } catch (IOException ioe) {
+                stream.errors++;
+            } catch (RuntimeException re) {
+                // a bad frame or a failing listener must not take the worker down with it
+                stream.errors++;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                synchronized (lock) {
+                    stream.virtual_time += elapsed / stream.weight;
+                    stream.busy_nanos += elapsed;
+                    stream.free.push(frame);
+                    stream.busy = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private double minActiveVirtualTime(Stream except) {
+        // least virtual time of the streams with a frame waiting or being localized - called with lock held
+        double min = Double.MAX_VALUE;
+        for (Stream s : streams)
+            if (s != except && (s.latest != null || s.busy))
+                min = Math.min(min, s.virtual_time);
+        return min;
+    }
+
+    private Stream nextStream() {
+        // ready stream with the least weighted localization time - called with lock held
+        Stream next = null;
+        for (Stream s : streams)
+            if (s.latest != null && !s.busy && (next == null || s.virtual_time < next.virtual_time))
+                next = s;
+        return next;
+    }
+
+    public String getStatistics() {
+        StringBuilder stats = new StringBuilder();
+        List<Stream> all;
+        synchronized (lock) {
+            all = new ArrayList<Stream>(streams);
+        }
+        for (Stream s : all)
+            stats.append(s.getStatistics()).append(System.getProperty("line.separator"));
+        return stats.toString();
+    }
+
+    public double getThroughput(String id) {
+        // frames localized per second since the stream started
+        Stream s = getStream(id);
+        return (s == null) ? 0 : s.getThroughput();
+    }
+
+    public double getMeanLagMillis(String id) {
+        Stream s = getStream(id);
+        return (s == null) ? 0 : s.getMeanLagMillis();
+    }
+
+    public double getMaxLagMillis(String id) {
+        Stream s = getStream(id);
+        return (s == null) ? 0 : s.max_lag / 1e6;
+    }
+
+    public long getDroppedCount(String id) {
+        // frames replaced by a newer one or skipped by the frame rate cap
+        Stream s = getStream(id);
+        if (s == null)
+            return 0;
+        synchronized (lock) {
+            return s.dropped;
+        }
+    }
+
+    private Stream getStream(String id) {
+        synchronized (lock) {
+            for (Stream s : streams)
+                if (s.id.equals(id))
+                    return s;
+        }
+        return null;
+    }
+
+    private class Stream {
+
+        final String id;
+        final LiveFramePipeline.FrameSource source;
+        final double weight;
+        final long min_interval;  // nanoseconds between localized frames, 0 for no cap
+        final StreamListener listener;
+        Barcode barcode;  // only used by the worker holding the stream
+        Thread captureThread;
+
+        // guarded by lock
+        final ArrayDeque<Frame> free = new ArrayDeque<Frame>();
+        Frame latest;
+        boolean busy;
+        double virtual_time;
+        long busy_nanos;
+        long captured, dropped;
+        long next_frame_nanos;
+
+        // written by the worker holding the stream
+        volatile long processed, errors, total_lag, max_lag;
+        long start_nanos;
+
+        Stream(String id, LiveFramePipeline.FrameSource source, double weight, double maxFps, StreamListener listener) {
+            this.id = id;
+            this.source = source;
+            this.weight = weight;
+            this.listener = listener;
+            min_interval = (maxFps > 0) ? (long) (1e9 / maxFps) : 0;
+            // one frame being captured, one waiting and one being localized
+            for (int i = 0; i < 3; i++)
+                free.push(new Frame());
+        }
+
+        void start() {
+            start_nanos = System.nanoTime();
+            captureThread = new Thread(new Runnable() {
+                public void run() {
+                    capture();
+                }
+            }, "barcode-stream-capture-" + id);
+            captureThread.start();
+        }
+
+        private void capture() {
+            while (running) {
+                Frame frame;
+                synchronized (lock) {
+                    frame = free.poll();
+                }
+                if (frame == null)
+                    frame = new Frame();
+                // frames are always read so the source does not fall behind, even when the cap skips them
+                if (!source.read(frame.image) || frame.image.empty())
+                    break;
+                long now = System.nanoTime();
+
+                synchronized (lock) {
+                    frame.number = ++captured;
+                    if (now < next_frame_nanos) {
+                        dropped++;
+                        free.push(frame);
+                        continue;
+                    }
+                    next_frame_nanos = now + min_interval;
+                    frame.capture_nanos = now;
+                    if (latest != null) {
+                        dropped++;
+                        free.push(latest);
+                    } else if (!busy) {
+                        // a stream coming back from idle is brought level with the active streams, otherwise
+                        // the virtual time it did not use would let it hold the pool until it caught up
+                        double active = minActiveVirtualTime(this);
+                        if (active != Double.MAX_VALUE && virtual_time < active)
+                            virtual_time = active;
+                    }
+                    latest = frame;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        List<CandidateResult> localize(Frame frame) throws IOException {
+            String name = id + "_" + frame.number;
+            if (barcode == null || !Barcode.updateImage(barcode, frame.image, name))
+                barcode = new MatrixBarcode(name, frame.image, flag);
+            return barcode.locateBarcode();
+        }
+
+        void recordLag(long lag) {
+            total_lag += lag;
+            if (lag > max_lag)
+                max_lag = lag;
+            processed++;
+        }
+
+        double getThroughput() {
+            long elapsed = System.nanoTime() - start_nanos;
+            return (elapsed <= 0) ? 0 : processed / (elapsed / 1e9);
+        }
+
+        double getMeanLagMillis() {
+            long count = processed;
+            return (count == 0) ? 0 : total_lag / (1e6 * count);
+        }
+
+        String getStatistics() {
+            long captured_frames, dropped_frames, busy;
+            synchronized (lock) {
+                captured_frames = captured;
+                dropped_frames = dropped;
+                busy = busy_nanos;
+            }
+            return id + " weight " + weight + " captured " + captured_frames + " processed " + processed
+                + " dropped " + dropped_frames + " errors " + errors
+                + " fps " + Math.round(10 * getThroughput()) / 10.0 + " busy ms " + Math.round(busy / 1e6)
+                + " lag ms mean " + Math.round(getMeanLagMillis()) + " max " + Math.round(max_lag / 1e6);
+        }
+    }
+
+    private static class Frame {
+
+        final Mat image = new Mat();
+        long capture_nanos;
+        long number;
+    }
+}
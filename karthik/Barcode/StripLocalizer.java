@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageReader;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ *
+ * @author karthik
+ * Searches very large images, e.g. line scan or large format scans, at full resolution one horizontal band at a time.
+ * Only one band is decoded and held in memory at once so peak memory depends on the band height and image width,
+ * not on the number of rows in the image. Bands are at most SearchParameters.MAX_ROWS high so they are not shrunk.
+ * Consecutive bands overlap by overlapRows so a code that straddles the seam between two bands lies completely
+ * inside one of them. Each candidate belongs to the band whose centre part, away from the overlaps, contains its centre,
+ * which stops codes inside an overlap from being reported twice.
+ * Candidate coordinates are in the coordinates of the whole image.
+ * Only formats whose readers can go straight to a band's rows are accepted: TIFF, whose reader decodes just the
+ * strips or tiles a band needs, BMP and any other tiled format. ImageIO decodes JPEG and PNG from the first row
+ * on every read, so the decode work for those would grow with the square of the number of bands, and they are
+ * rejected with an IOException.
+ */
+public class StripLocalizer {
+
+    private final String filename;
+    private final int bandRows, overlapRows;
+    private final TryHarderFlags flag;
+    private boolean grayscale = true;
+    private boolean locateOnly = false;
+
+    private int bandsProcessed;
+
+    public StripLocalizer(String filename, TryHarderFlags flag) {
+        this(filename, flag, SearchParameters.MAX_ROWS, SearchParameters.MAX_ROWS / 4);
+    }
+
+    public StripLocalizer(String filename, TryHarderFlags flag, int bandRows, int overlapRows) {
+        // overlapRows should be at least the height of the largest code expected, including its quiet zone
+        if (bandRows > SearchParameters.MAX_ROWS)
+            throw new IllegalArgumentException("bandRows must be at most " + SearchParameters.MAX_ROWS + " so bands are searched at full resolution");
+        if (overlapRows < 0 || overlapRows >= bandRows)
+            throw new IllegalArgumentException("overlapRows must be between 0 and bandRows");
+        this.filename = filename;
+        this.flag = flag;
+        this.bandRows = bandRows;
+        this.overlapRows = overlapRows;
+    }
+
+    public void doColourCandidates(boolean colour) {
+        // bands are decoded as grayscale unless colour candidate crops are wanted
+        grayscale = !colour;
+    }
+
+    public void doLocateOnly(boolean locate) {
+        // same as Barcode.doLocateOnly - candidates carry only their location
+        locateOnly = locate;
+    }
+
+    public List<CandidateResult> locateBarcode() throws IOException {
+        // one reader for all bands so the file is opened and its header parsed only once
+        ImageReader reader = ReducedImageLoader.openReader(filename);
+        if (reader == null)
+            throw new IOException("StripLocalizer cannot read the size of " + filename);
+        try {
+            return locateBarcode(reader);
+        } finally {
+            ReducedImageLoader.closeReader(reader);
+        }
+    }
+
+    private List<CandidateResult> locateBarcode(ImageReader reader) throws IOException {
+        if (!hasRandomRowAccess(reader))
+            throw new IOException("StripLocalizer needs a TIFF, BMP or tiled image - " + reader.getFormatName()
+                + " files are decoded from the first row for every band");
+        int rows = reader.getHeight(0), cols = reader.getWidth(0);
+        int step = bandRows - overlapRows;
+
+        List<CandidateResult> candidates = new ArrayList<CandidateResult>();
+        Barcode barcode = null;
+        bandsProcessed = 0;
+
+        for (int top = 0; top < rows; top += step) {
+            int bottom = Math.min(top + bandRows, rows);
+            Mat band = ReducedImageLoader.readRegion(reader, top, bottom, 0, cols, grayscale);
+            if (band == null)
+                throw new IOException("StripLocalizer cannot read rows " + top + " to " + bottom + " of " + filename);
+
+            // reuse the workspace for all bands of the same size - only the last band can be shorter
+            String name = filename + "_rows_" + top;
+            if (barcode == null || !Barcode.updateImage(barcode, band, name)) {
+                barcode = new MatrixBarcode(name, band, flag);
+                barcode.doLocateOnly(locateOnly);
+            }
+
+            // rows of this band that it owns - half of each overlap goes to the band on either side
+            double owned_top = (top == 0) ? 0 : top + overlapRows / 2.0;
+            double owned_bottom = (bottom == rows) ? rows : bottom - overlapRows / 2.0;
+
+            for (CandidateResult candidate : barcode.locateBarcode()) {
+                double centre_y = candidate.region.center.y + top;
+                if (centre_y < owned_top || centre_y >= owned_bottom)
+                    continue;
+                // crops are made now because the band is replaced by the next one
+                if (!locateOnly)
+                    candidate.getROI();
+                toImageCoordinates(candidate, top);
+                candidates.add(candidate);
+            }
+            bandsProcessed++;
+            if (bottom == rows)
+                break;
+        }
+        return candidates;
+    }
+
+    static boolean hasRandomRowAccess(ImageReader reader) throws IOException {
+        // true if reading a band only decodes the data for that band
+        String format = reader.getFormatName().toLowerCase();
+        return format.equals("tif") || format.equals("tiff") || format.equals("bmp") || reader.isImageTiled(0);
+    }
+
+    public int getBandsProcessed() {
+        return bandsProcessed;
+    }
+
+    private static void toImageCoordinates(CandidateResult candidate, int top) {
+        // moves a candidate from band coordinates to whole image coordinates
+        candidate.region.center.y += top;
+        for (Point p : candidate.ROI_coords)
+            p.y += top;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.Rect;
+
+/**
+ *
+ * @author karthik
+ * Orientation histograms and edge counts for each tile of the image.
+ * Level 0 has one entry per tile of the base tile size with 16 bit counts.
+ * Level k + 1 has tiles 4 times wider and taller and is built on demand by summing 4 x 4 blocks of level k,
+ * matching the tileSize *= 4 loop in MatrixBarcode.locateBarcode.
+ * This replaces one full resolution integral image per orientation bin plus one for the edge density.
+ */
+class TileHistogramPyramid {
+
+    private static final int DUMMY_ANGLE = 255;
+    static final int LEVEL_SCALE = 4;
+
+    private int base_tile_size;
+    private final List<Integer> tile_rows = new ArrayList<Integer>();
+    private final List<Integer> tile_cols = new ArrayList<Integer>();
+
+    // level 0 counts - bin counts are stored as [tile][bin]
+    private char[] base_bins, base_edges;
+    // counts for the coarser levels, index 0 is level 1
+    private final List<int[]> level_bins = new ArrayList<int[]>();
+    private final List<int[]> level_edges = new ArrayList<int[]>();
+
+    private int[] col_to_tile;
+
+    void build(byte[] directions, byte[] edges, byte[] mask, Rect box, int rows, int cols, int tileSize) {
+        // counts edges and orientation bins for each base tile of an image with rows x cols pixels
+        // directions, edges and mask cover only the pixels in box - tiles outside it are left empty
+        // pixels where mask is 0 are not counted, mask can be null if every pixel in box is searched
+        // bins match the inclusive inRange limits the OpenCV version used so a direction on a bin boundary counts in both bins
+        assert (tileSize * tileSize <= Character.MAX_VALUE) : "base tile is too large for 16 bit counts";
+
+        base_tile_size = tileSize;
+        tile_rows.clear();
+        tile_cols.clear();
+        level_bins.clear();
+        level_edges.clear();
+        tile_rows.add((rows + tileSize - 1) / tileSize);
+        tile_cols.add((cols + tileSize - 1) / tileSize);
+
+        int num_tiles = tile_rows.get(0) * tile_cols.get(0);
+        if (base_edges == null || base_edges.length != num_tiles) {
+            base_edges = new char[num_tiles];
+            base_bins = new char[num_tiles * ImageInfo.bins];
+        } else {
+            Arrays.fill(base_edges, (char) 0);
+            Arrays.fill(base_bins, (char) 0);
+        }
+
+        if (col_to_tile == null || col_to_tile.length != box.width)
+            col_to_tile = new int[box.width];
+        for (int x = 0; x < box.width; x++)
+            col_to_tile[x] = (x + box.x) / tileSize;
+
+        int num_tile_cols = tile_cols.get(0);
+        for (int y = 0; y < box.height; y++) {
+            int tile_offset = ((y + box.y) / tileSize) * num_tile_cols;
+            int src = y * box.width;
+            for (int x = 0; x < box.width; x++) {
+                if (mask != null && mask[src + x] == 0)
+                    continue;
+                int tile = tile_offset + col_to_tile[x];
+                if ((edges[src + x] & 0xff) > 1)
+                    base_edges[tile]++;
+
+                int d = directions[src + x] & 0xff;
+                if (d == DUMMY_ANGLE)
+                    continue;
+                int bin = (d - 1) / ImageInfo.BIN_WIDTH;
+                int hist_offset = tile * ImageInfo.bins;
+                if (bin < ImageInfo.bins)
+                    base_bins[hist_offset + bin]++;
+                if (bin > 0 && (d - 1) % ImageInfo.BIN_WIDTH == 0)
+                    base_bins[hist_offset + bin - 1]++;
+            }
+        }
+    }
+
+    int getLevel(int tileSize) {
+        // returns the pyramid level for tiles of side tileSize, building coarser levels if necessary
+        int level = 0;
+        for (int size = base_tile_size; size < tileSize; size *= LEVEL_SCALE)
+            level++;
+
+        while (tile_rows.size() <= level)
+            buildNextLevel();
+        return level;
+    }
+
+    int getTileRows(int level) {
+        return tile_rows.get(level);
+    }
+
+    int getTileCols(int level) {
+        return tile_cols.get(level);
+    }
+
+    int getTile(int level, int tile_row, int tile_col, int[] hist) {
+        // fills hist with the orientation histogram of the tile and returns the number of edges in it
+        int tile = tile_row * tile_cols.get(level) + tile_col;
+        if (level == 0) {
+            for (int b = 0; b < ImageInfo.bins; b++)
+                hist[b] = base_bins[tile * ImageInfo.bins + b];
+            return base_edges[tile];
+        }
+        int[] bins = level_bins.get(level - 1);
+        System.arraycopy(bins, tile * ImageInfo.bins, hist, 0, ImageInfo.bins);
+        return level_edges.get(level - 1)[tile];
+    }
+
+    private void buildNextLevel() {
+        // sums 4 x 4 blocks of the current top level - blocks are clipped at the bottom and right edges
+        int level = tile_rows.size() - 1;
+        int src_rows = tile_rows.get(level);
+        int src_cols = tile_cols.get(level);
+        int dst_rows = (src_rows + LEVEL_SCALE - 1) / LEVEL_SCALE;
+        int dst_cols = (src_cols + LEVEL_SCALE - 1) / LEVEL_SCALE;
+
+        int[] dst_bins = new int[dst_rows * dst_cols * ImageInfo.bins];
+        int[] dst_edges = new int[dst_rows * dst_cols];
+        int[] hist = new int[ImageInfo.bins];
+
+        for (int r = 0; r < src_rows; r++) {
+            for (int c = 0; c < src_cols; c++) {
+                int dst_tile = (r / LEVEL_SCALE) * dst_cols + c / LEVEL_SCALE;
+                dst_edges[dst_tile] += getTile(level, r, c, hist);
+                for (int b = 0; b < ImageInfo.bins; b++)
+                    dst_bins[dst_tile * ImageInfo.bins + b] += hist[b];
+            }
+        }
+        tile_rows.add(dst_rows);
+        tile_cols.add(dst_cols);
+        level_bins.add(dst_bins);
+        level_edges.add(dst_edges);
+    }
+}
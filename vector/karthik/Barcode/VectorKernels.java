@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 karthik
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package karthik.Barcode;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ *
+ * @author karthik
+ * GradientKernels written with the jdk.incubator.vector API. Loaded by GradientKernels.load when it is on the
+ * classpath and the JVM was started with --add-modules jdk.incubator.vector.
+ * Scharr works on short lanes and direction binning on int lanes. The narrower inputs are loaded with a species of
+ * the same lane count and widened with convertShape. Columns left over at the end of a row go through the scalar code.
+ */
+class VectorKernels extends GradientKernels {
+
+    // at least 256 bits so that the byte species for the int lanes is a supported shape
+    private static final VectorShape SHAPE = VectorShape.preferredShape().vectorBitSize() >= 256
+        ? VectorShape.preferredShape() : VectorShape.S_256_BIT;
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED.withShape(SHAPE)
+        .check(short.class);
+    private static final VectorSpecies<Byte> SHORT_BYTES = ByteVector.SPECIES_PREFERRED
+        .withShape(VectorShape.forBitSize(SHAPE.vectorBitSize() / 2)).check(byte.class);
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED.withShape(SHAPE).check(int.class);
+    private static final VectorSpecies<Short> INT_SHORTS = ShortVector.SPECIES_PREFERRED
+        .withShape(VectorShape.forBitSize(SHAPE.vectorBitSize() / 2)).check(short.class);
+    private static final VectorSpecies<Byte> INT_BYTES = ByteVector.SPECIES_PREFERRED
+        .withShape(VectorShape.forBitSize(SHAPE.vectorBitSize() / 4)).check(byte.class);
+
+    @Override
+    String getName() {
+        return "vector " + SHAPE.vectorBitSize();
+    }
+
+    private static ShortVector load(byte[] src, int offset) {
+        // lanes of unsigned pixel values starting at src[offset]
+        return ((ShortVector) ByteVector.fromArray(SHORT_BYTES, src, offset)
+            .convertShape(VectorOperators.B2S, SHORTS, 0)).and((short) 0xff);
+    }
+
+    @Override
+    void scharrRow(byte[] src, int up, int mid, int down, int cols, short[] dx, short[] dy) {
+        int lanes = SHORTS.length();
+        int x = 1;
+        for (; x + lanes <= cols - 1; x += lanes) {
+            ShortVector tl = load(src, up + x - 1), tc = load(src, up + x), tr = load(src, up + x + 1);
+            ShortVector ml = load(src, mid + x - 1), mr = load(src, mid + x + 1);
+            ShortVector bl = load(src, down + x - 1), bc = load(src, down + x), br = load(src, down + x + 1);
+            tr.sub(tl).add(br).sub(bl).mul((short) 3).add(mr.sub(ml).mul((short) 10)).intoArray(dx, mid + x);
+            bl.sub(tl).add(br).sub(tr).mul((short) 3).add(bc.sub(tc).mul((short) 10)).intoArray(dy, mid + x);
+        }
+        scharrRange(src, up, mid, down, x, cols - 1, dx, dy);
+    }
+
+    @Override
+    void directions(short[] dx, short[] dy, int size, byte[] lut, int ratio_bits, int[] magnitudes, byte[] directions,
+        int[] min_max) {
+        int lanes = INTS.length();
+        int steps = (1 << ratio_bits) + 1;
+        int[] index = new int[lanes];
+        IntVector min_mags = IntVector.broadcast(INTS, Integer.MAX_VALUE);
+        IntVector max_mags = IntVector.zero(INTS);
+        IntVector zero = IntVector.zero(INTS);
+        ByteVector no_direction = ByteVector.broadcast(INT_BYTES, (byte) 1);
+        int i = 0;
+        for (; i + lanes <= size; i += lanes) {
+            IntVector x = (IntVector) ShortVector.fromArray(INT_SHORTS, dx, i).convertShape(VectorOperators.S2I, INTS, 0);
+            IntVector y = (IntVector) ShortVector.fromArray(INT_SHORTS, dy, i).convertShape(VectorOperators.S2I, INTS, 0);
+            IntVector ax = x.abs();
+            IntVector ay = y.abs();
+            IntVector mag = ax.add(ay);
+            mag.intoArray(magnitudes, i);
+            min_mags = min_mags.min(mag);
+            max_mags = max_mags.max(mag);
+
+            // same octants and ratio as GradientKernels.direction
+            VectorMask<Integer> same_sign = x.lanewise(VectorOperators.XOR, y).compare(VectorOperators.GE, 0);
+            VectorMask<Integer> y_le_x = ay.compare(VectorOperators.LE, ax);
+            IntVector num = ax.blend(ay, y_le_x);
+            IntVector den = ay.blend(ax, y_le_x).max(1);
+            IntVector ratio = num.lanewise(VectorOperators.LSHL, ratio_bits).div(den);
+            IntVector octant = IntVector.broadcast(INTS, 2).blend(3, y_le_x)
+                .blend(zero.blend(1, y_le_x.not()), same_sign);
+            octant.mul(steps).add(ratio).intoArray(index, 0);
+
+            ByteVector codes = ByteVector.fromArray(INT_BYTES, lut, 0, index, 0);
+            VectorMask<Byte> flat = mag.compare(VectorOperators.EQ, 0).cast(INT_BYTES);
+            codes.blend(no_direction, flat).intoArray(directions, i);
+        }
+        int min_mag = min_mags.reduceLanes(VectorOperators.MIN);
+        int max_mag = max_mags.reduceLanes(VectorOperators.MAX);
+        for (; i < size; i++) {
+            int mag = direction(dx[i], dy[i], lut, ratio_bits, directions, i);
+            magnitudes[i] = mag;
+            if (mag < min_mag)
+                min_mag = mag;
+            if (mag > max_mag)
+                max_mag = mag;
+        }
+        min_max[0] = min_mag;
+        min_max[1] = max_mag;
+    }
+}